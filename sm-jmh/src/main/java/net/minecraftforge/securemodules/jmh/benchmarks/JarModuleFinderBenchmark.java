@@ -26,4 +26,16 @@ public class JarModuleFinderBenchmark {
 
         blackhole.consume(jarModuleFinder);
     }
+
+    /**
+     * A single plain jar, which is read through the central directory instead of walking the zip file system.
+     */
+    @Benchmark
+    public void benchSecureJarFrom(Blackhole blackhole) {
+        var path = Paths.get("./src/testjars/testjar2.jar");
+        var secureJar = SecureJar.from(path);
+
+        blackhole.consume(secureJar.getPackages());
+        blackhole.consume(secureJar.getProviders());
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.jmh.benchmarks;
+
+import cpw.mods.niofs.union.UnionFileSystemProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+@State(Scope.Benchmark)
+public class MappedZipBenchmark {
+    private static final UnionFileSystemProvider UFSP = (UnionFileSystemProvider) FileSystemProvider.installedProviders().stream().filter(fsp->fsp.getScheme().equals("union")).findFirst().orElseThrow(()->new IllegalStateException("Couldn't find UnionFileSystemProvider"));
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    private Path jar;
+    private FileSystem fileSystem;
+
+    @Setup
+    public void setup() throws Exception {
+        jar = Paths.get("src","testjars","testjar2.jar").toAbsolutePath().normalize();
+        BiPredicate<String, String> all = (p, b) -> true;
+        fileSystem = UFSP.newFileSystem(jar, Map.of("filter", all, "index", false, "mapped", mapped));
+    }
+
+    // Opening and reading the central directory, which every jar on the module path pays for
+    @Benchmark
+    public void testOpen(Blackhole blackhole) throws Exception {
+        var fs = mapped ? FileSystems.newFileSystem(new URI("mzip:" + jar.toUri()), Map.of()) : FileSystems.newFileSystem(jar);
+        try (fs) {
+            blackhole.consume(fs.getRootDirectories());
+        }
+    }
+
+    @Benchmark
+    public void testExists(Blackhole blackhole) {
+        blackhole.consume(Files.exists(fileSystem.getPath("net/minecraftforge/common/ForgeMod.class")));
+        blackhole.consume(Files.exists(fileSystem.getPath("net/minecraftforge/common/Missing.class")));
+    }
+
+    @Benchmark
+    public void testRead(Blackhole blackhole) throws Exception {
+        blackhole.consume(Files.readAllBytes(fileSystem.getPath("META-INF/MANIFEST.MF")));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.jmh.benchmarks;
+
+import cpw.mods.jarhandling.SecureJar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@State(Scope.Benchmark)
+public class SecureJarBatchBenchmark {
+    // Each jar is opened a few times, so that there is actually something to spread across threads
+    private static final int COPIES = 8;
+
+    @Param({"1", "4", "16"})
+    public int threads = 4;
+
+    private List<Path[]> paths;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        this.paths = new ArrayList<>();
+        for (int x = 0; x < COPIES; x++) {
+            for (var name : List.of("testjar1.jar", "testjar2.jar", "testjar3.jar"))
+                this.paths.add(new Path[] { Paths.get("src", "testjars", name).toAbsolutePath().normalize() });
+        }
+        this.executor = Executors.newFixedThreadPool(this.threads);
+    }
+
+    @TearDown
+    public void teardown() {
+        this.executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void benchSequential(Blackhole blackhole) {
+        for (var path : this.paths)
+            blackhole.consume(SecureJar.from(path).getPackages());
+    }
+
+    @Benchmark
+    public void benchFromAll(Blackhole blackhole) {
+        for (var jar : SecureJar.fromAll(this.paths, this.executor))
+            blackhole.consume(jar.getPackages());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.jmh.benchmarks;
+
+import cpw.mods.jarhandling.SecureJar;
+import net.minecraftforge.securemodules.SecureModuleClassLoader;
+import net.minecraftforge.securemodules.SecureModuleFinder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.module.Configuration;
+import java.lang.module.ModuleFinder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@State(Scope.Benchmark)
+public class SecureModuleClassLoaderBenchmark {
+    private static Configuration config;
+    private static List<String> classes;
+    private static BenchmarkClassLoader loader;
+
+    @Setup
+    public void setup() throws Exception {
+        var path = Paths.get("src", "testjars", "testjar2.jar").toAbsolutePath().normalize();
+        var jar = SecureJar.from(path);
+        config = ModuleLayer.boot().configuration().resolve(SecureModuleFinder.of(jar), ModuleFinder.of(), List.of(jar.name()));
+
+        var root = jar.getRootPath();
+        try (var walk = Files.walk(root)) {
+            classes = walk
+                .map(p -> root.relativize(p).toString())
+                .filter(p -> p.endsWith(".class") && !p.endsWith("module-info.class") && !p.startsWith("META-INF"))
+                .map(p -> p.substring(0, p.length() - 6).replace('/', '.'))
+                .collect(Collectors.toList());
+        }
+        loader = new BenchmarkClassLoader(config);
+    }
+
+    /**
+     * Reads the bytes of every class in testjar2 through a fresh class loader.
+     * We can't actually define them, as their dependencies don't exist, but this goes through the same
+     * module reader lookup as findClass.
+     */
+    @Benchmark
+    public void testGetClassBytes(Blackhole blackhole) throws Exception {
+        var loader = new BenchmarkClassLoader(config);
+        for (var cls : classes)
+            blackhole.consume(loader.getClassBytes(cls));
+    }
+
+    /**
+     * Looks up every class file in testjar2 as a resource through the same class loader, like anything scanning
+     * a mod's classes would.
+     */
+    @Benchmark
+    public void testGetResource(Blackhole blackhole) {
+        for (var cls : classes)
+            blackhole.consume(loader.getResource(cls.replace('.', '/') + ".class"));
+    }
+
+    private static class BenchmarkClassLoader extends SecureModuleClassLoader {
+        private BenchmarkClassLoader(Configuration config) {
+            super("BENCHMARK", null, config, List.of(ModuleLayer.boot()));
+        }
+
+        private byte[] getClassBytes(String name) throws ClassNotFoundException {
+            return getMaybeTransformedClassBytes(name, null);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.jmh.benchmarks;
+
+import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.jarhandling.impl.Jar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+@State(Scope.Benchmark)
+public class SignedJarBenchmark {
+    private static final String NAME = "test/Signed.class";
+    private Jar jar;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        // Built by sm-test-data
+        var path = Paths.get("..", "sm-test", "src", "test", "resources", "signed.jar").toAbsolutePath().normalize();
+        this.jar = (Jar)SecureJar.from(path);
+        this.data = Files.readAllBytes(this.jar.getPath(NAME));
+    }
+
+    /**
+     * Many threads loading classes out of the same signed jar at once.
+     */
+    @Benchmark
+    @Threads(4)
+    public void testVerifyShared(Blackhole blackhole) {
+        blackhole.consume(this.jar.verifyAndGetSigners(NAME, this.data));
+    }
+
+    /**
+     * Every thread opening and verifying its own copy, so every call actually hashes the class.
+     */
+    @Benchmark
+    @Threads(4)
+    public void testOpenAndVerify(Blackhole blackhole) {
+        var jar = (Jar)SecureJar.from(this.jar.getPrimaryPath());
+        blackhole.consume(jar.verifyAndGetSigners(NAME, this.data));
+    }
+}
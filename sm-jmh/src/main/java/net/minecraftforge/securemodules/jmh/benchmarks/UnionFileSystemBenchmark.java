@@ -7,10 +7,13 @@ package net.minecraftforge.securemodules.jmh.benchmarks;
 
 import cpw.mods.niofs.union.UnionFileSystem;
 import cpw.mods.niofs.union.UnionFileSystemProvider;
+import cpw.mods.niofs.union.UnionPathFilter;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.infra.Blackhole;
 
 import java.nio.file.Files;
@@ -18,30 +21,74 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiPredicate;
 
 @State(Scope.Benchmark)
 public class UnionFileSystemBenchmark {
     private static final UnionFileSystemProvider UFSP = (UnionFileSystemProvider) FileSystemProvider.installedProviders().stream().filter(fsp->fsp.getScheme().equals("union")).findFirst().orElseThrow(()->new IllegalStateException("Couldn't find UnionFileSystemProvider"));
     private static UnionFileSystem fileSystem;
     private static UnionFileSystem dirFileSystem;
+    private static UnionFileSystem filteredFileSystem;
+    private static UnionFileSystem ruleFilteredFileSystem;
     private static Path rawdir;
+    private static Path extraDir;
+
+    /** Build the merged path index up front */
+    @Param({"false", "true"})
+    public boolean indexed = false;
+
+    /** Extra directories to add on top of the three jars, so that every lookup has to check them first */
+    @Param({"0", "50"})
+    public int extraBases = 0;
+
+    /** Treat the extra directories as unchanging, so misses can skip them */
+    @Param({"false", "true"})
+    public boolean staticDirs = false;
 
     @Setup
     public void setup() throws Exception {
         var path1 = Paths.get("src","testjars","testjar1.jar").toAbsolutePath().normalize();
         var path2 = Paths.get("src","testjars","testjar2.jar").toAbsolutePath().normalize();
         var path3 = Paths.get("src","testjars","testjar3.jar").toAbsolutePath().normalize();
-        Map<String, List<Path>> properties = new HashMap<>();
-        var additionalPaths = List.of(path2, path3);
+        Map<String, Object> properties = new HashMap<>();
+        var additionalPaths = new ArrayList<>(List.of(path2, path3));
+
+        extraDir = Files.createTempDirectory("ufs-benchmark");
+        for (int x = 0; x < extraBases; x++) {
+            var dir = Files.createDirectories(extraDir.resolve("base" + x));
+            Files.writeString(dir.resolve("extra" + x + ".txt"), "extra" + x);
+            additionalPaths.add(dir);
+        }
+
         properties.put("additional", additionalPaths);
+        properties.put("index", indexed);
+        properties.put("static", staticDirs);
 
         fileSystem = (UnionFileSystem) UFSP.newFileSystem(path1, properties);
         rawdir = Paths.get("src","testrawdir").toAbsolutePath().normalize();
         var dir2= Paths.get("src", "testrawdir2").toAbsolutePath().normalize();
-        dirFileSystem = (UnionFileSystem) UFSP.newFileSystem(rawdir, Map.of("additional", List.of(dir2)));
+        dirFileSystem = (UnionFileSystem) UFSP.newFileSystem(rawdir, Map.of("additional", List.of(dir2), "index", indexed, "static", staticDirs));
+
+        // Something like the filters Forge uses to hide packages that are provided by other jars
+        var hidden = List.of("net/minecraftforge/client/model/", "net/minecraftforge/fml/", "cpw/mods/modlauncher/serviceapi/", "META-INF/versions/");
+        properties.put("filter", (BiPredicate<String, String>)(path, base) -> hidden.stream().noneMatch(path::startsWith));
+        filteredFileSystem = (UnionFileSystem) UFSP.newFileSystem(path1, properties);
+        // The same filter as rules
+        properties.put("filter", UnionPathFilter.builder().exclude(hidden.toArray(String[]::new)).build());
+        ruleFilteredFileSystem = (UnionFileSystem) UFSP.newFileSystem(path1, properties);
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        try (var walk = Files.walk(extraDir)) {
+            for (var path : walk.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
     }
 
     @Benchmark
@@ -57,6 +104,20 @@ public class UnionFileSystemBenchmark {
         runExists("Missing.class", false);
     }
 
+    @Benchmark
+    public void testFilteredJarFileExists(Blackhole blackhole) throws Exception {
+        runExists(filteredFileSystem, "cpw/mods/niofs/union/UnionPath.class", true); //jar 1
+        runExists(filteredFileSystem, "net/minecraftforge/client/event/GuiOpenEvent.class", true); //jar 2
+        runExists(filteredFileSystem, "cpw/mods/modlauncher/Launcher.class", true); //jar 3
+    }
+
+    @Benchmark
+    public void testRuleFilteredJarFileExists(Blackhole blackhole) throws Exception {
+        runExists(ruleFilteredFileSystem, "cpw/mods/niofs/union/UnionPath.class", true); //jar 1
+        runExists(ruleFilteredFileSystem, "net/minecraftforge/client/event/GuiOpenEvent.class", true); //jar 2
+        runExists(ruleFilteredFileSystem, "cpw/mods/modlauncher/Launcher.class", true); //jar 3
+    }
+
     @Benchmark
     public void testNativeFileExists(Blackhole blackhole) throws Exception {
         runNativeFileExists("ThisFileExists.txt", true);
@@ -131,7 +192,11 @@ public class UnionFileSystemBenchmark {
     }
 
     private static void runExists(String pathString, boolean expected) throws Exception {
-        if (Files.exists(fileSystem.getPath(pathString)) != expected) {
+        runExists(fileSystem, pathString, expected);
+    }
+
+    private static void runExists(UnionFileSystem fs, String pathString, boolean expected) throws Exception {
+        if (Files.exists(fs.getPath(pathString)) != expected) {
             throw new RuntimeException("Wrong exists status");
         }
     }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.jmh.benchmarks;
+
+import cpw.mods.niofs.union.UnionFileSystem;
+import cpw.mods.niofs.union.UnionFileSystemProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.function.BiPredicate;
+
+@State(Scope.Benchmark)
+public class UnionFileSystemWalkBenchmark {
+    private static final UnionFileSystemProvider UFSP = (UnionFileSystemProvider) FileSystemProvider.installedProviders().stream().filter(fsp->fsp.getScheme().equals("union")).findFirst().orElseThrow(()->new IllegalStateException("Couldn't find UnionFileSystemProvider"));
+    private UnionFileSystem fileSystem;
+
+    @Setup
+    public void setup() throws Exception {
+        var path = Paths.get("src","testjars","testjar2.jar").toAbsolutePath().normalize();
+        // A filter is what makes SecureJar use a union file system for a single jar
+        BiPredicate<String, String> filter = (p, b) -> !p.startsWith("META-INF/versions/");
+        fileSystem = UFSP.newFileSystem(filter, path);
+    }
+
+    // The same walk Jar.gatherPackages does
+    @Benchmark
+    public void testWalk(Blackhole blackhole) throws Exception {
+        try (var walk = Files.walk(fileSystem.getRoot())) {
+            walk.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void testListDirectory(Blackhole blackhole) throws Exception {
+        try (var dir = Files.newDirectoryStream(fileSystem.getPath("net/minecraftforge/common"))) {
+            for (var path : dir)
+                blackhole.consume(path);
+        }
+    }
+
+    // How long until the first entry shows up
+    @Benchmark
+    public void testFirstEntry(Blackhole blackhole) throws Exception {
+        try (var dir = Files.newDirectoryStream(fileSystem.getPath("net/minecraftforge/common"))) {
+            blackhole.consume(dir.iterator().next());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.jmh.benchmarks;
+
+import cpw.mods.niofs.union.UnionFileSystemProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+@State(Scope.Benchmark)
+public class UnionPathBenchmark {
+    private static final UnionFileSystemProvider UFSP = (UnionFileSystemProvider) FileSystemProvider.installedProviders().stream().filter(fsp->fsp.getScheme().equals("union")).findFirst().orElseThrow(()->new IllegalStateException("Couldn't find UnionFileSystemProvider"));
+
+    private FileSystem fileSystem;
+    private Path packagePath;
+    private Path classPath;
+    private Path className;
+    private Path dotted;
+    private URI classUri;
+
+    @Setup
+    public void setup() throws Exception {
+        var jar = Paths.get("src","testjars","testjar2.jar").toAbsolutePath().normalize();
+        BiPredicate<String, String> all = (p, b) -> true;
+        fileSystem = UFSP.newFileSystem(jar, Map.of("filter", all, "index", false));
+        packagePath = fileSystem.getPath("/net/minecraftforge/common");
+        classPath = fileSystem.getPath("/net/minecraftforge/common/ForgeMod.class");
+        className = fileSystem.getPath("ForgeMod.class");
+        dotted = fileSystem.getPath("/net/minecraftforge/./common/../common/ForgeMod.class");
+        classUri = classPath.toUri();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    @Benchmark
+    public void testParse(Blackhole blackhole) {
+        blackhole.consume(fileSystem.getPath("net/minecraftforge/common/ForgeMod.class"));
+        blackhole.consume(fileSystem.getPath("/META-INF/MANIFEST.MF"));
+    }
+
+    // Parsing then hashing, which is what every map lookup keyed by path does
+    @Benchmark
+    public void testParseHash(Blackhole blackhole) {
+        blackhole.consume(fileSystem.getPath("net/minecraftforge/common/ForgeMod.class").hashCode());
+    }
+
+    @Benchmark
+    public void testResolve(Blackhole blackhole) {
+        blackhole.consume(packagePath.resolve(className));
+    }
+
+    @Benchmark
+    public void testRelativize(Blackhole blackhole) {
+        blackhole.consume(packagePath.relativize(classPath));
+        blackhole.consume(fileSystem.getRootDirectories().iterator().next().relativize(classPath).toString());
+    }
+
+    @Benchmark
+    public void testNormalize(Blackhole blackhole) {
+        blackhole.consume(fileSystem.getPath("/net/minecraftforge/./common/../common/ForgeMod.class").normalize());
+        blackhole.consume(classPath.normalize());
+    }
+
+    @Benchmark
+    public void testSubpath(Blackhole blackhole) {
+        blackhole.consume(classPath.getFileName());
+        blackhole.consume(classPath.getParent());
+        blackhole.consume(dotted.subpath(1, 4));
+    }
+
+    // What opening a union: URL does every time
+    @Benchmark
+    public void testFromUri(Blackhole blackhole) {
+        blackhole.consume(Paths.get(classUri));
+    }
+}
@@ -5,19 +5,26 @@
 
 package net.minecraftforge.securemodules.test;
 
+import java.lang.module.Configuration;
 import java.lang.module.ModuleFinder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import cpw.mods.jarhandling.SecureJar;
 import net.minecraftforge.bootstrap.Bootstrap;
 import net.minecraftforge.securemodules.SecureModuleClassLoader;
+import net.minecraftforge.securemodules.SecureModuleClassLoader.LookupCacheStats;
 import net.minecraftforge.securemodules.SecureModuleFinder;
+import net.minecraftforge.unsafe.UnsafeHacks;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static net.minecraftforge.securemodules.test.TestSecureJarLoading.hash;
@@ -172,6 +179,33 @@ public class TestClassLoader {
         assertEquals(SecureJar.Status.INVALID, jar.getFileStatus("test/Signed.class"), "Incorrect file status");
     }
 
+    /**
+     * Classes are normally defined straight from the jar's buffer, but anything that transforms classes still needs to see every class.
+     */
+    @Test
+    void testTransformed() throws Exception {
+        boot("testTransformedBoot");
+    }
+    public static void testTransformedBoot() throws Exception {
+        var jar = SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        var layer = TestClassLoader.class.getModule().getLayer();
+        var cfg = layer.configuration().resolveAndBind(SecureModuleFinder.of(jar), ModuleFinder.of(), List.of("test"));
+
+        var transformed = new ArrayList<String>();
+        var cl = new SecureModuleClassLoader("MODULE-CLASSLOADER", null, cfg, List.of(layer), List.of(), false) {
+            @Override
+            protected byte[] maybeTransformClassBytes(byte[] bytes, String name, String context) {
+                transformed.add(name);
+                return bytes;
+            }
+        };
+        layer.defineModules(cfg, mod -> cl);
+
+        var cls = getClass("test.Signed", cl);
+        assertEquals(List.of("test.Signed"), transformed, "Transformer was not called");
+        assertNotNull(cls.getSigners(), "Missing code signers");
+    }
+
     /**
      * Make sure that we can validate the Multi-Release jar's contents
      */
@@ -215,6 +249,39 @@ public class TestClassLoader {
         assertEquals(cls.getModule(), info.getModule(), "Mismatched modules");
     }
 
+    /**
+     * Resources outside of our packages are found through an index of every module's contents
+     * instead of asking each module, so make sure that finds the same things.
+     */
+    @Test
+    void testUnpackagedResources() throws Exception {
+        boot("testUnpackagedResourcesBoot");
+    }
+    public static void testUnpackagedResourcesBoot() throws Exception {
+        var cl = setup("signed");
+        for (var name : new String[] {"META-INF/MANIFEST.MF", "META-INF/", "META-INF", "test/Signed.class"}) {
+            var url = cl.getResource(name);
+            assertNotNull(url, "Missing resource " + name);
+            assertTrue(url.toString().contains("signed.jar"), "Resource " + name + " found in wrong location: " + url);
+        }
+        assertNull(cl.getResource("META-INF/missing.txt"), "Found missing resource");
+    }
+
+    @Test // Directories can change at any time, so they can't be indexed up front
+    void testExplodedResources(@TempDir Path tempDir) throws Exception {
+        var dir = Files.createDirectories(tempDir.resolve("exploded"));
+        Files.writeString(dir.resolve("first.txt"), "first");
+        var jar = SecureJar.from(dir);
+        var layer = TestClassLoader.class.getModule().getLayer();
+        var cfg = layer.configuration().resolveAndBind(SecureModuleFinder.of(jar), ModuleFinder.of(), List.of(jar.name()));
+        var cl = new FallbackLoader(cfg, layer);
+
+        assertNotNull(cl.getResource("first.txt"), "Missing resource first.txt");
+        assertNull(cl.getResource("second.txt"), "Found resource before it was created");
+        Files.writeString(dir.resolve("second.txt"), "second");
+        assertNotNull(cl.getResource("second.txt"), "Resource added after the first lookup was not found");
+    }
+
     @Test
     void testInterruption() throws Exception {
         boot("testInterruptionBoot");
@@ -235,4 +302,63 @@ public class TestClassLoader {
 
         future.join();
     }
+
+    @Test
+    void testNegativeLookupCache() throws Exception {
+        var jar = SecureJar.from(Paths.get("src/test/resources/unsigned.jar"));
+        var layer = TestClassLoader.class.getModule().getLayer();
+        var cfg = layer.configuration().resolveAndBind(SecureModuleFinder.of(jar), ModuleFinder.of(), List.of("test"));
+
+        // Disabled by default, so nothing is remembered or counted
+        var cl = new FallbackLoader(cfg, layer);
+        for (int x = 0; x < 3; x++) {
+            assertThrows(ClassNotFoundException.class, () -> cl.loadClass("missing.A"));
+            assertNull(cl.getResource("missing/a.txt"));
+        }
+        assertEquals(new LookupCacheStats(0, 0, 0, 0), cl.getClassLookupStats());
+        assertEquals(new LookupCacheStats(0, 0, 0, 0), cl.getResourceLookupStats());
+
+        // Oldest added is the first to go, even if it was just used
+        setNegativeCacheSize(cl, 2);
+        for (var name : List.of("A", "B", "A", "C", "B", "A"))
+            assertThrows(ClassNotFoundException.class, () -> cl.loadClass("missing." + name));
+        assertEquals(new LookupCacheStats(2, 4, 2, 2), cl.getClassLookupStats());
+        for (var name : List.of("a", "b", "c", "d", "a"))
+            assertNull(cl.getResource("missing/" + name + ".txt"));
+        assertEquals(new LookupCacheStats(0, 5, 2, 2), cl.getResourceLookupStats());
+
+        // Changing the fallback directly still forgets everything
+        cl.fallback(ClassLoader.getPlatformClassLoader());
+        assertThrows(ClassNotFoundException.class, () -> cl.loadClass("missing.A"));
+        assertEquals(new LookupCacheStats(2, 5, 1, 2), cl.getClassLookupStats());
+        assertNull(cl.getResource("missing/d.txt"));
+        assertEquals(new LookupCacheStats(0, 6, 1, 2), cl.getResourceLookupStats());
+
+        // And through the old setter
+        @SuppressWarnings("removal")
+        var old = new cpw.mods.cl.ModuleClassLoader("OLD", cfg, List.of(layer));
+        setNegativeCacheSize(old, 2);
+        assertNull(old.getResource("missing/a.txt"));
+        assertNull(old.getResource("missing/a.txt"));
+        assertEquals(new LookupCacheStats(1, 1, 1, 2), old.getResourceLookupStats());
+        old.setFallbackClassLoader(ClassLoader.getPlatformClassLoader());
+        assertEquals(0, old.getResourceLookupStats().size());
+    }
+
+    private static void setNegativeCacheSize(SecureModuleClassLoader cl, int size) throws Exception {
+        var ctr = Class.forName("net.minecraftforge.securemodules.NegativeLookupCache").getDeclaredConstructor(int.class);
+        UnsafeHacks.setAccessible(ctr);
+        UnsafeHacks.findField(SecureModuleClassLoader.class, "missingClasses").set(cl, ctr.newInstance(size));
+        UnsafeHacks.findField(SecureModuleClassLoader.class, "missingResources").set(cl, ctr.newInstance(size));
+    }
+
+    private static class FallbackLoader extends SecureModuleClassLoader {
+        private FallbackLoader(Configuration config, ModuleLayer layer) {
+            super("FALLBACK", null, config, List.of(layer));
+        }
+
+        private void fallback(ClassLoader loader) {
+            this.fallbackClassLoader = loader;
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.test;
+
+import cpw.mods.jarhandling.JarMetadata;
+import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.jarhandling.impl.Jar;
+import net.minecraftforge.unsafe.UnsafeHacks;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.module.ModuleDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// JarMetadataCache is internal, so everything goes through reflection
+public class TestMetadataCache {
+    private static final Class<?> CACHE = type("cpw.mods.jarhandling.impl.JarMetadataCache");
+    private static final Class<?> ENTRY = type("cpw.mods.jarhandling.impl.JarMetadataCache$Entry");
+    private static final Class<?> KEY = type("cpw.mods.jarhandling.impl.JarMetadataCache$Key");
+
+    @Test // Everything saved should come back out the same, including a full module descriptor
+    void testRoundTrip(@TempDir Path tempDir) throws Exception {
+        var jar = copy("unsigned", tempDir);
+        var cache = cache(tempDir.resolve("cache"));
+        var key = key(cache, jar);
+        assertNotNull(key, "Plain jar should be cacheable");
+        assertNull(load(cache, key), "Empty cache returned an entry");
+
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Automatic-Module-Name", "test.cache");
+        var descriptor = ModuleDescriptor.newOpenModule("test.cache")
+            .version("1.2.3")
+            .mainClass("test.cache.Main")
+            .packages(Set.of("test.cache", "test.cache.api", "test.cache.impl"))
+            .uses("test.cache.api.Service")
+            .requires(Set.of(ModuleDescriptor.Requires.Modifier.TRANSITIVE), "java.logging")
+            .requires(Set.of(ModuleDescriptor.Requires.Modifier.STATIC), "java.sql", ModuleDescriptor.Version.parse("17"))
+            .exports("test.cache.api")
+            .exports(Set.of(), "test.cache.impl", Set.of("other.module"))
+            .provides("test.cache.api.Service", List.of("test.cache.impl.ServiceImpl"))
+            .build();
+        var saved = entry(manifest, Map.of("test/Override.class", "META-INF/versions/9/test/Override.class"),
+            List.of(new SecureJar.Provider("test.cache.api.Service", List.of("test.cache.impl.ServiceImpl"))),
+            List.of("test/cache/Main.class", "META-INF/MANIFEST.MF"), descriptor);
+        save(cache, key, saved);
+
+        var loaded = load(cache, key);
+        assertNotNull(loaded, "Saved entry was not loaded");
+        for (var component : ENTRY.getRecordComponents())
+            assertEquals(get(component, saved), get(component, loaded), "Mismatched " + component.getName());
+
+        var automatic = ModuleDescriptor.newAutomaticModule("test.automatic").packages(Set.of("test.automatic")).build();
+        save(cache, key, entry(manifest, Map.of(), List.of(), List.of(), automatic));
+        assertEquals(automatic, get(ENTRY.getRecordComponents()[4], load(cache, key)), "Mismatched automatic descriptor");
+    }
+
+    @Test // Changing the jar, or running on a different java version, must not use the old entry
+    void testInvalidation(@TempDir Path tempDir) throws Exception {
+        var jar = copy("unsigned", tempDir);
+        var cache = cache(tempDir.resolve("cache"));
+        var descriptor = ModuleDescriptor.newAutomaticModule("test.invalid").build();
+
+        var key = key(cache, jar);
+        save(cache, key, entry(new Manifest(), Map.of(), List.of(), List.of(), descriptor));
+        assertNotNull(load(cache, key), "Saved entry was not loaded");
+
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() - 10_000));
+        var touched = key(cache, jar);
+        assertNull(load(cache, touched), "Modified time change was not noticed");
+
+        save(cache, touched, entry(new Manifest(), Map.of(), List.of(), List.of(), descriptor));
+        var time = Files.getLastModifiedTime(jar);
+        Files.write(jar, new byte[] { 0 }, StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(jar, time);
+        var grown = key(cache, jar);
+        assertNull(load(cache, grown), "Size change was not noticed");
+
+        // The stamp starts with the format, followed by the java version
+        var stamp = ((byte[])get(KEY.getRecordComponents()[1], grown)).clone();
+        stamp[7]++;
+        var otherJava = construct(KEY.getDeclaredConstructor(String.class, byte[].class), get(KEY.getRecordComponents()[0], grown), stamp);
+        save(cache, otherJava, entry(new Manifest(), Map.of(), List.of(), List.of(), descriptor));
+        assertNull(load(cache, grown), "Java version change was not noticed");
+    }
+
+    @Test // Garbage on disk should be treated as a miss, not an error
+    void testCorrupt(@TempDir Path tempDir) throws Exception {
+        var jar = copy("unsigned", tempDir);
+        var root = tempDir.resolve("cache");
+        var cache = cache(root);
+        var key = key(cache, jar);
+        var file = root.resolve(get(KEY.getRecordComponents()[0], key) + ".bin");
+
+        save(cache, key, entry(new Manifest(), Map.of(), List.of(), List.of("a.txt"), ModuleDescriptor.newAutomaticModule("test.corrupt").build()));
+        var data = Files.readAllBytes(file);
+
+        Files.write(file, new byte[] { 1, 2, 3 });
+        assertNull(load(cache, key), "Garbage entry was loaded");
+
+        Files.write(file, Arrays.copyOf(data, data.length - 4));
+        assertNull(load(cache, key), "Truncated entry was loaded");
+
+        data[data.length - 1] = (byte)0xFF;
+        Files.write(file, data);
+        assertNull(load(cache, key), "Corrupt descriptor was loaded");
+    }
+
+    @Test // A cache entry can't make a signed jar lose its signatures
+    void testSignedNotFromCache(@TempDir Path tempDir) throws Exception {
+        var name = "test/Signed.class";
+        var jar = copy("signed", tempDir);
+        var cache = cache(tempDir.resolve("cache"));
+
+        var real = new Jar(jar);
+        var key = key(cache, jar);
+        save(cache, key, entry(new Manifest(), Map.of(), List.of(), List.of(name), real.moduleDataProvider().descriptor()));
+        assertNotNull(load(cache, key), "Forged entry was not loaded");
+
+        var ctr = Jar.class.getDeclaredConstructor(Supplier.class, Function.class, BiPredicate.class, CACHE, Path[].class);
+        Function<SecureJar, JarMetadata> meta = j -> { throw new AssertionError("Metadata should have come from the cache"); };
+        var cached = (Jar)construct(ctr, null, meta, null, cache, new Path[] { jar });
+        assertTrue(cached.hasSecurityData(), "Signed jar lost its signatures");
+        assertNotNull(cached.moduleDataProvider().verifyAndGetSigners(name, Files.readAllBytes(cached.getPath(name))), "Missing code signers array for " + name);
+        assertEquals(SecureJar.Status.VERIFIED, cached.getFileStatus(name));
+    }
+
+    private static Path copy(String name, Path dir) throws Exception {
+        return Files.copy(Paths.get("src/test/resources/" + name + ".jar"), dir.resolve(name + ".jar"));
+    }
+
+    private static Object cache(Path root) throws Exception {
+        return construct(CACHE.getDeclaredConstructor(Path.class), root);
+    }
+
+    private static Object entry(Manifest manifest, Map<String, String> overrides, List<SecureJar.Provider> providers, List<String> files, ModuleDescriptor descriptor) throws Exception {
+        var ctr = ENTRY.getDeclaredConstructor(Manifest.class, Map.class, List.class, List.class, ModuleDescriptor.class);
+        return construct(ctr, manifest, overrides, providers, files, descriptor);
+    }
+
+    private static Object key(Object cache, Path path) throws Exception {
+        return invoke(CACHE.getDeclaredMethod("key", Path[].class), cache, (Object)new Path[] { path.toAbsolutePath().normalize() });
+    }
+
+    private static Object load(Object cache, Object key) throws Exception {
+        return invoke(CACHE.getDeclaredMethod("load", KEY), cache, key);
+    }
+
+    private static void save(Object cache, Object key, Object entry) throws Exception {
+        invoke(CACHE.getDeclaredMethod("save", KEY, ENTRY), cache, key, entry);
+    }
+
+    private static Object get(RecordComponent component, Object record) throws Exception {
+        return invoke(component.getAccessor(), record);
+    }
+
+    private static Object construct(Constructor<?> ctr, Object... args) throws Exception {
+        UnsafeHacks.setAccessible(ctr);
+        try {
+            return ctr.newInstance(args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+    }
+
+    private static Object invoke(Method method, Object instance, Object... args) throws Exception {
+        UnsafeHacks.setAccessible(method);
+        try {
+            return method.invoke(instance, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
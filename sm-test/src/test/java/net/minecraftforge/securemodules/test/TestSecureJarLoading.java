@@ -8,24 +8,39 @@ package net.minecraftforge.securemodules.test;
 import cpw.mods.jarhandling.SecureJar;
 import cpw.mods.jarhandling.impl.Jar;
 import cpw.mods.jarhandling.impl.SecureJarVerifier;
+import cpw.mods.niofs.union.UnionFileSystemProvider;
+import net.minecraftforge.securemodules.SecureModuleFinder;
+import net.minecraftforge.unsafe.UnsafeHacks;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.spi.FileSystemProvider;
+import java.security.CodeSigner;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
 import java.util.zip.ZipInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 public class TestSecureJarLoading {
+    private static final UnionFileSystemProvider UFSP = (UnionFileSystemProvider) FileSystemProvider.installedProviders().stream().filter(fsp->fsp.getScheme().equals("union")).findFirst().orElseThrow(()->new IllegalStateException("Couldn't find UnionFileSystemProvider"));
     static final String FINGERPRINT = "c565ada57942d5be47f926fceeae539dbc8c1f4b";
 
     @Test // All files are signed
@@ -43,6 +58,120 @@ public class TestSecureJarLoading {
         assertEquals(List.of("test/Signed.class"), seen, "Mising Signed class");
     }
 
+    @Test // Lots of threads verifying the same entry should all agree, and it should only be checked once
+    void testConcurrentVerify() throws Exception {
+        var jar = (Jar)SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        var name = "test/Signed.class";
+        var data = Files.readAllBytes(jar.getPath(name));
+
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var futures = new ArrayList<Future<CodeSigner[]>>();
+            for (int x = 0; x < 64; x++)
+                futures.add(executor.submit(() -> jar.verifyAndGetSigners(name, data)));
+
+            var first = futures.get(0).get();
+            assertNotNull(first, "Missing code signers array for " + name);
+            for (var future : futures)
+                assertSame(first, future.get(), "Entry was verified more than once");
+            assertEquals(SecureJar.Status.VERIFIED, jar.getFileStatus(name));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test // Reading a class through the module data provider verifies it on the way
+    void testStreamingVerify() throws Exception {
+        var name = "test/Signed.class";
+
+        var jar = SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        var streamed = UnsafeHacks.<Jar, Map<?, ?>>findField(Jar.class, "streamed");
+        byte[] data;
+        // Normal reads shouldn't pay for hashing that nothing will use
+        try (var is = jar.moduleDataProvider().open(name).orElseThrow()) {
+            is.readAllBytes();
+        }
+        assertTrue(streamed.get((Jar)jar).isEmpty(), "Plain open was hashed");
+
+        try (var is = Jar.openVerifying(jar.moduleDataProvider(), name).orElseThrow()) {
+            data = is.readAllBytes();
+        }
+        assertFalse(streamed.get((Jar)jar).isEmpty(), "Verifying open was not hashed");
+        assertNotNull(Jar.verifyUntransformed(jar.moduleDataProvider(), name, data), "Missing code signers array for " + name);
+        assertEquals(SecureJar.Status.VERIFIED, jar.getFileStatus(name));
+        assertTrue(streamed.get((Jar)jar).isEmpty(), "Streamed result was kept after verifying");
+
+        // The public API can't know what the caller did with the array, so changing it in place must be noticed
+        jar = SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        try (var is = jar.moduleDataProvider().open(name).orElseThrow()) {
+            data = is.readAllBytes();
+        }
+        data[data.length - 1] ^= 1;
+        assertNull(jar.moduleDataProvider().verifyAndGetSigners(name, data), "Data modified in place was verified");
+        assertEquals(SecureJar.Status.INVALID, jar.getFileStatus(name));
+
+        // Modified bytes must not pick up the result of what was streamed
+        jar = SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        try (var is = Jar.openVerifying(jar.moduleDataProvider(), name).orElseThrow()) {
+            data = is.readAllBytes();
+        }
+        var modified = data.clone();
+        modified[modified.length - 1] ^= 1;
+        assertNull(Jar.verifyUntransformed(jar.moduleDataProvider(), name, modified), "Modified data was verified");
+        assertEquals(SecureJar.Status.INVALID, jar.getFileStatus(name));
+
+        jar = SecureJar.from(Paths.get("src/test/resources/invalid.jar"));
+        try (var is = jar.moduleDataProvider().open(name).orElseThrow()) {
+            data = is.readAllBytes();
+        }
+        assertNull(jar.moduleDataProvider().verifyAndGetSigners(name, data), "Tampered data was verified");
+        assertEquals(SecureJar.Status.INVALID, jar.getFileStatus(name));
+    }
+
+    @Test // Verifying everything up front means nothing needs to be hashed later
+    void testVerifyAll() throws Exception {
+        var name = "test/Signed.class";
+        var jar = SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var future = jar.verifyAll(executor);
+            assertSame(future, jar.verifyAll(executor), "Verification was started twice");
+            future.join();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(SecureJar.Status.VERIFIED, jar.getFileStatus(name));
+        assertNotNull(jar.moduleDataProvider().verifyAndGetSigners(name, Files.readAllBytes(jar.getPath(name))), "Missing code signers array for " + name);
+        assertEquals(new SecureJar.VerificationStats(1, 0), jar.getVerificationStats());
+    }
+
+    @Test // Digests that aren't one of the common ones should still be looked up by name
+    void testUncommonDigest() throws Exception {
+        var data = "Some data".getBytes(StandardCharsets.UTF_8);
+        var manifest = new Manifest();
+        var attrs = new Attributes();
+        attrs.putValue("MD2-Digest", Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD2").digest(data)));
+        manifest.getEntries().put("a.txt", attrs);
+        var bad = new Attributes();
+        bad.putValue("Not-A-Real-Hash-Digest", "AAAA");
+        manifest.getEntries().put("b.txt", bad);
+
+        var cls = Class.forName("cpw.mods.jarhandling.impl.ManifestVerifier");
+        var ctr = cls.getDeclaredConstructor(Manifest.class);
+        var verify = cls.getDeclaredMethod("verify", Map.class, Map.class, String.class, byte[].class);
+        UnsafeHacks.setAccessible(ctr);
+        UnsafeHacks.setAccessible(verify);
+        var verifier = ctr.newInstance(manifest);
+
+        assertEquals(Optional.empty(), verify.invoke(verifier, new HashMap<>(), new HashMap<>(), "a.txt", data), "MD2 digest did not match");
+        var modified = data.clone();
+        modified[0] ^= 1;
+        assertNull(verify.invoke(verifier, new HashMap<>(), new HashMap<>(), "a.txt", modified), "Modified data was verified");
+        var e = assertThrows(InvocationTargetException.class, () -> verify.invoke(verifier, new HashMap<>(), new HashMap<>(), "b.txt", data));
+        assertTrue(e.getCause().getCause() instanceof NoSuchAlgorithmException, "Unknown digest should fail like MessageDigest.getInstance");
+    }
+
     @Test // Nothing is signed
     void testUnsignedJar() throws Exception {
         var seen = processEntries("unsigned", (jar, zip, name) -> {
@@ -66,6 +195,33 @@ public class TestSecureJarLoading {
         assertThrows(UncheckedIOException.class, ()->SecureJar.from(path), "File does not exist");
     }
 
+    @Test
+    void testFromAll() throws Exception {
+        var names = List.of("signed", "unsigned", "partial", "multirelease", "empty");
+        var paths = new ArrayList<Path[]>();
+        for (var name : names)
+            paths.add(new Path[] { Paths.get("src/test/resources/" + name + ".jar") });
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var jars = SecureJar.fromAll(paths, executor);
+            assertEquals(names.size(), jars.size(), "Wrong number of jars");
+            for (int x = 0; x < names.size(); x++)
+                assertEquals(paths.get(x)[0].toAbsolutePath().normalize(), jars.get(x).getPrimaryPath(), "Jars out of order");
+
+            // Multiple paths make a union file system, which must be closed if something else fails
+            var before = UFSP.getSharedStats();
+            paths.add(new Path[] { Paths.get("src/test/resources/unsigned.jar"), Paths.get("src/test/resources/partial.jar") });
+            paths.add(new Path[] { Paths.get("thisdoesnotexist") });
+            paths.add(new Path[] { Paths.get("thisdoesnotexist2") });
+            var error = assertThrows(UncheckedIOException.class, () -> SecureJar.fromAll(paths, executor), "File does not exist");
+            assertEquals(1, error.getSuppressed().length, "Second failure was not suppressed");
+            assertEquals(before, UFSP.getSharedStats(), "Opened jars were not closed");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test // Has a file that is signed, but modified
     void testTampered() throws Exception {
         var seen = processEntries("invalid", (jar, zip, name) -> {
@@ -103,6 +259,45 @@ public class TestSecureJarLoading {
         assertEquals(List.of(), seen, "Unexpected contents in empty jar");
     }
 
+    @Test // ModuleReader.read should hand out the same bytes as open, and reuse its buffer once released
+    void testModuleReader() throws Exception {
+        var name = "test/Signed.class";
+        var jar = SecureJar.from(Paths.get("src/test/resources/signed.jar"));
+        var ref = SecureModuleFinder.of(jar).find("test").orElseThrow();
+
+        try (var reader = ref.open()) {
+            byte[] expected;
+            try (var is = reader.open(name).orElseThrow()) {
+                expected = is.readAllBytes();
+            }
+
+            var buf = reader.read(name).orElseThrow();
+            var data = new byte[buf.remaining()];
+            buf.get(data);
+            assertArrayEquals(expected, data, "Read different data than open");
+            // Nothing makes callers release, so they can't be given the pooled direct buffer
+            if (!buf.isReadOnly())
+                assertFalse(buf.isDirect(), "Public read used a pooled buffer");
+            reader.release(buf);
+
+            // The class loader always releases, so it gets the same buffer back each time
+            var pooled = Jar.readPooled(jar.moduleDataProvider(), name).orElseThrow();
+            var nested = Jar.readPooled(jar.moduleDataProvider(), name).orElseThrow();
+            assertNotSame(pooled, nested, "Nested reads shared a buffer");
+            assertEquals(expected.length, nested.capacity(), "Fallback buffer was not exactly sized");
+            reader.release(nested);
+            reader.release(pooled);
+            var again = Jar.readPooled(jar.moduleDataProvider(), name).orElseThrow();
+            assertEquals(expected.length, again.remaining(), "Reused buffer has the wrong size");
+            if (pooled.isDirect() && !pooled.isReadOnly())
+                assertSame(pooled, again, "Pooled buffer was not reused");
+            reader.release(again);
+
+            assertTrue(reader.read("test/Missing.class").isEmpty(), "Found a missing file");
+            assertEquals(List.of("test/Signed.class"), reader.list().filter(n -> n.endsWith(".class")).toList());
+        }
+    }
+
     @Test // Test opening the same file multiple times.
     void testSameJar() throws Exception {
         var path = Paths.get("src/test/resources/empty.jar");
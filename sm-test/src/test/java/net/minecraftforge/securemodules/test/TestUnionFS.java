@@ -10,21 +10,32 @@ import org.junit.jupiter.api.Test;
 import cpw.mods.niofs.union.UnionFileSystem;
 import cpw.mods.niofs.union.UnionFileSystemProvider;
 import cpw.mods.niofs.union.UnionPath;
+import cpw.mods.niofs.union.UnionPathFilter;
 import net.minecraftforge.unsafe.UnsafeHacks;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -160,6 +171,313 @@ public class TestUnionFS {
         });
     }
 
+    @Test
+    void testIndexed() throws Exception {
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+        final var dir2 = Paths.get("src", "test", "resources", "dir2").toAbsolutePath().normalize();
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        BiPredicate<String, String> filter = (path, base) -> !path.startsWith("masktest2.txt");
+
+        var plain = (UnionFileSystem)UFSP.newFileSystem(dir1, Map.of("filter", filter, "additional", List.of(dir2, zip), "index", false));
+        var indexed = (UnionFileSystem)UFSP.newFileSystem(dir1, Map.of("filter", filter, "additional", List.of(dir2, zip), "index", true));
+        assertFalse(plain.isIndexed());
+        assertTrue(indexed.isIndexed());
+
+        for (var name : List.of("masktest.txt", "masktest2.txt", "masktest3.txt", "subdir1", "subdir1/masktestsd1.txt", "/subdir1/../masktest.txt", "missing.txt", "/")) {
+            var expected = plain.getPath(name);
+            var actual = indexed.getPath(name);
+            assertEquals(Files.exists(expected), Files.exists(actual), "Wrong exists for " + name);
+            if (!Files.exists(expected))
+                continue;
+
+            assertEquals(Files.isDirectory(expected), Files.isDirectory(actual), "Wrong type for " + name);
+            if (!Files.isDirectory(expected)) {
+                assertEquals(Files.size(expected), Files.size(actual), "Wrong size for " + name);
+                assertEquals(Files.readString(expected), Files.readString(actual), "Wrong content for " + name);
+            }
+        }
+        assertThrows(NoSuchFileException.class, () -> Files.readAttributes(indexed.getPath("missing.txt"), BasicFileAttributes.class));
+    }
+
+    @Test
+    void testPathFilter() throws Exception {
+        var filter = UnionPathFilter.builder()
+            .include("net/minecraftforge", "META-INF/MANIFEST.MF")
+            .includeSuffix(".png")
+            .exclude("net/minecraftforge/internal")
+            .excludeGlob("**/*Test.class")
+            .forBase("other.jar", b -> b.exclude("META-INF"))
+            .build();
+        assertTrue(filter.test("net/", "mods/some.jar"));
+        assertTrue(filter.test("net/minecraftforge/", "mods/some.jar"));
+        assertTrue(filter.test("net/minecraftforge/common/ForgeMod.class", "mods/some.jar"));
+        assertFalse(filter.test("net/minecraftforgex/ForgeMod.class", "mods/some.jar"));
+        assertFalse(filter.test("net/minecraftforge/internal/Thing.class", "mods/some.jar"));
+        assertFalse(filter.test("net/minecraftforge/common/ForgeModTest.class", "mods/some.jar"));
+        assertTrue(filter.test("META-INF/", "mods/some.jar"));
+        assertTrue(filter.test("META-INF/MANIFEST.MF", "mods/some.jar"));
+        assertFalse(filter.test("META-INF/MANIFEST.MF", "mods/other.jar"));
+        assertTrue(filter.test("META-INF/MANIFEST.MF", "mods/another.jar")); // Only whole names count for bases too
+        assertTrue(filter.test("assets/icon.png", "mods/some.jar"));
+        assertTrue(filter.test("assets/", "mods/some.jar")); // Could have a png in it
+        assertFalse(filter.test("assets/icon.txt", "mods/some.jar"));
+
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+        final var dir2 = Paths.get("src", "test", "resources", "dir2").toAbsolutePath().normalize();
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        var rules = UnionPathFilter.builder()
+            .exclude("subdir1")
+            .excludeSuffix("3.txt")
+            .forBase("dir2", b -> b.exclude("masktest.txt"))
+            .build();
+        BiPredicate<String, String> lambda = (path, base) ->
+            !path.startsWith("subdir1/") && !path.endsWith("3.txt") && !(base.endsWith("/dir2") && path.equals("masktest.txt"));
+
+        var expected = UFSP.newFileSystem(dir1, Map.of("filter", lambda, "additional", List.of(dir2, zip), "index", false));
+        for (var index : new boolean[] { false, true }) {
+            var actual = (UnionFileSystem)UFSP.newFileSystem(dir1, Map.of("filter", rules, "additional", List.of(dir2, zip), "index", index));
+            for (var name : List.of("masktest.txt", "masktest2.txt", "masktest3.txt", "subdir1", "subdir1/masktestsd1.txt", "missing.txt", "/")) {
+                var e = expected.getPath(name);
+                var a = actual.getPath(name);
+                assertEquals(Files.exists(e), Files.exists(a), "Wrong exists for " + name + " index " + index);
+                if (Files.isRegularFile(e))
+                    assertEquals(Files.readString(e), Files.readString(a), "Wrong content for " + name + " index " + index);
+            }
+            try (var walk = Files.walk(actual.getRoot())) {
+                assertEquals(Set.of("/", "masktest.txt", "masktest2.txt"), walk.map(Path::toString).collect(Collectors.toSet()));
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+
+    @Test
+    void testStatic() throws Exception {
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        final var dir = Files.createTempDirectory("union-static");
+        try {
+            Files.writeString(dir.resolve("before.txt"), "before");
+            var dynamic = UFSP.newFileSystem(dir, Map.of("additional", List.of(zip), "index", false, "static", false));
+            var fixed = UFSP.newFileSystem(dir, Map.of("additional", List.of(zip), "index", false, "static", true));
+
+            for (var fs : List.of(dynamic, fixed)) {
+                assertTrue(Files.exists(fs.getPath("before.txt")));
+                assertTrue(Files.exists(fs.getPath("masktest.txt")));
+                assertTrue(Files.isDirectory(fs.getPath("subdir1")));
+                assertFalse(Files.exists(fs.getPath("missing.txt")));
+                assertThrows(NoSuchFileException.class, () -> Files.readAttributes(fs.getPath("missing.txt"), BasicFileAttributes.class));
+            }
+
+            // Only directories that are allowed to change should see new files
+            Files.writeString(dir.resolve("after.txt"), "after");
+            assertTrue(Files.exists(dynamic.getPath("after.txt")));
+            assertFalse(Files.exists(fixed.getPath("after.txt")));
+        } finally {
+            try (var walk = Files.walk(dir)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    void testFilterCached() throws Exception {
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        var calls = new AtomicInteger();
+        BiPredicate<String, String> filter = (path, base) -> {
+            calls.incrementAndGet();
+            return !path.startsWith("masktest2.txt");
+        };
+        var fs = UFSP.newFileSystem(zip, Map.of("filter", filter, "index", false));
+
+        for (int x = 0; x < 3; x++) {
+            assertTrue(Files.exists(fs.getPath("masktest.txt")));
+            assertFalse(Files.exists(fs.getPath("masktest2.txt")));
+            assertTrue(Files.isDirectory(fs.getPath("subdir1")));
+        }
+        assertEquals(3, calls.get(), "Filter should only be asked about each path once");
+
+        // Once full, only the oldest answer is forgotten instead of everything
+        var cls = Class.forName("cpw.mods.niofs.union.FifoCache");
+        var ctr = cls.getDeclaredConstructor(int.class);
+        var get = cls.getDeclaredMethod("get", Object.class);
+        var put = cls.getDeclaredMethod("put", Object.class, Object.class);
+        UnsafeHacks.setAccessible(ctr);
+        UnsafeHacks.setAccessible(get);
+        UnsafeHacks.setAccessible(put);
+        var cache = ctr.newInstance(2);
+        var paths = List.of(fs.getPath("a"), fs.getPath("b"), fs.getPath("c"));
+        for (var path : paths)
+            put.invoke(cache, path, true);
+        assertNull(get.invoke(cache, paths.get(0)), "Oldest entry was not evicted");
+        assertEquals(true, get.invoke(cache, paths.get(1)));
+        assertEquals(true, get.invoke(cache, paths.get(2)));
+    }
+
+    @Test
+    void testSharedZips() throws Exception {
+        // Copy it so nothing else has it open
+        final var zip = Files.createTempFile("union-shared", ".zip");
+        try {
+            Files.copy(Paths.get("src", "test", "resources", "dir1.zip"), zip, StandardCopyOption.REPLACE_EXISTING);
+            var before = UFSP.getSharedStats();
+
+            BiPredicate<String, String> all = (path, base) -> true;
+            var first = UFSP.newFileSystem(all, zip);
+            var second = UFSP.newFileSystem((path, base) -> !path.startsWith("masktest2.txt"), zip);
+            var stats = UFSP.getSharedStats();
+            assertEquals(before.fileSystems() + 1, stats.fileSystems(), "Jar was opened twice");
+            assertEquals(before.references() + 2, stats.references());
+            assertEquals(before.savedHandles() + 1, stats.savedHandles());
+            assertTrue(stats.savedBytes() > before.savedBytes(), "Sharing saved nothing");
+
+            // The jar's names are only gathered once, however many union file systems use it
+            if (!((UnionFileSystem)first).isIndexed()) {
+                var blooms = UnsafeHacks.<UnionFileSystem, Object[]>findField(UnionFileSystem.class, "blooms");
+                assertNotNull(blooms.get((UnionFileSystem)first)[0], "Jar has no bloom filter");
+                assertSame(blooms.get((UnionFileSystem)first)[0], blooms.get((UnionFileSystem)second)[0], "Jar was walked twice");
+            }
+
+            // Closing one must not close the jar out from under the other
+            first.close();
+            assertTrue(Files.exists(second.getPath("masktest.txt")));
+            assertFalse(Files.exists(second.getPath("masktest2.txt")));
+            assertEquals(before.references() + 1, UFSP.getSharedStats().references());
+
+            second.close();
+            assertEquals(before, UFSP.getSharedStats());
+        } finally {
+            Files.deleteIfExists(zip);
+        }
+    }
+
+    @Test // If a later base can't be opened, the jars opened before it must not be left open
+    void testSharedZipsFailedBase() throws Exception {
+        final var zip = Files.createTempFile("union-shared", ".zip");
+        final var bad = Files.createTempFile("union-bad", ".zip");
+        try {
+            Files.copy(Paths.get("src", "test", "resources", "dir1.zip"), zip, StandardCopyOption.REPLACE_EXISTING);
+            Files.writeString(bad, "Not a zip file");
+            var before = UFSP.getSharedStats();
+
+            // Later paths are searched first, so the good jar is opened before the bad one
+            assertThrows(Exception.class, () -> UFSP.newFileSystem((path, base) -> true, bad, zip));
+            assertEquals(before, UFSP.getSharedStats(), "Jar was left open");
+        } finally {
+            Files.deleteIfExists(zip);
+            Files.deleteIfExists(bad);
+        }
+    }
+
+    @Test
+    void testClose() throws Exception {
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        var fs = UFSP.newFileSystem((path, base) -> true, zip);
+        var path = fs.getPath("masktest.txt");
+        assertTrue(Files.exists(path));
+        var uri = path.toUri();
+        assertEquals(path.toAbsolutePath(), Paths.get(uri));
+        assertEquals(path.toAbsolutePath(), Paths.get(uri)); // Cached this time
+        assertEquals(fs.getRoot(), Paths.get(fs.getRoot().toUri()));
+
+        fs.close();
+        fs.close(); // Closing twice is fine
+        assertFalse(fs.isOpen());
+        assertThrows(ClosedFileSystemException.class, () -> Files.readAllBytes(path));
+        assertThrows(ClosedFileSystemException.class, () -> Files.readAttributes(path, BasicFileAttributes.class));
+        assertThrows(ClosedFileSystemException.class, () -> Files.newDirectoryStream(fs.getRoot()));
+        assertThrows(FileSystemNotFoundException.class, () -> UFSP.getFileSystem(fs.getRoot().toUri()));
+        assertThrows(FileSystemNotFoundException.class, () -> Paths.get(uri));
+    }
+
+    @Test // Going past the limit should only forget the oldest URIs, not everything
+    void testUriCacheEviction() throws Exception {
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        var fs = UFSP.newFileSystem((path, base) -> true, zip);
+        try {
+            var cache = UnsafeHacks.<UnionFileSystemProvider, Object>findField(UnionFileSystemProvider.class, "uriCache").get(UFSP);
+            var get = cache.getClass().getDeclaredMethod("get", Object.class);
+            var size = cache.getClass().getDeclaredMethod("size");
+            UnsafeHacks.setAccessible(get);
+            UnsafeHacks.setAccessible(size);
+            int limit = Integer.getInteger("securejarhandler.unionUriCache", 256);
+
+            var uris = new ArrayList<URI>();
+            for (int x = 0; x < limit + limit / 2; x++) {
+                var uri = fs.getPath("file" + x + ".txt").toUri();
+                uris.add(uri);
+                assertEquals(fs.getPath("/file" + x + ".txt"), Paths.get(uri));
+            }
+
+            assertTrue((int)size.invoke(cache) <= limit, "URI cache grew past its limit");
+            assertNull(get.invoke(cache, uris.get(0).toString()), "Oldest URI was not evicted");
+            for (var uri : uris.subList(uris.size() - limit, uris.size()))
+                assertNotNull(get.invoke(cache, uri.toString()), "Recent URI was evicted " + uri);
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test // Opening and closing lots of file systems must not leak file handles or the file systems themselves
+    void testCloseMany() throws Exception {
+        final var zip = Files.createTempFile("union-close", ".zip");
+        try {
+            Files.copy(Paths.get("src", "test", "resources", "dir1.zip"), zip, StandardCopyOption.REPLACE_EXISTING);
+            var fds = Paths.get("/proc/self/fd");
+            var before = UFSP.getSharedStats();
+            long handles = Files.isDirectory(fds) ? countFiles(fds) : -1;
+
+            var refs = new ArrayList<WeakReference<UnionFileSystem>>();
+            for (int x = 0; x < 2000; x++) {
+                var fs = UFSP.newFileSystem((path, base) -> true, zip);
+                assertTrue(Files.exists(fs.getPath("subdir1/masktestsd1.txt")));
+                fs.close();
+                if (x % 100 == 0)
+                    refs.add(new WeakReference<>(fs));
+            }
+
+            assertEquals(before, UFSP.getSharedStats(), "Jar file systems were left open");
+            if (handles != -1)
+                assertTrue(countFiles(fds) < handles + 10, "File handles leaked");
+
+            for (int x = 0; x < 10 && refs.stream().anyMatch(r -> r.get() != null); x++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertTrue(refs.stream().allMatch(r -> r.get() == null), "Closed file systems are still referenced");
+        } finally {
+            Files.deleteIfExists(zip);
+        }
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (var stream = Files.list(dir)) {
+            return stream.count();
+        }
+    }
+
+    @Test
+    void testMappedZip() throws Exception {
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        BiPredicate<String, String> all = (path, base) -> true;
+        var zipfs = UFSP.newFileSystem(zip, Map.of("filter", all, "index", false, "mapped", false));
+        var mapped = UFSP.newFileSystem(zip, Map.of("filter", all, "index", false, "mapped", true));
+
+        for (var name : List.of("masktest.txt", "masktest2.txt", "subdir1", "subdir1/masktestsd1.txt")) {
+            var expected = Files.readAttributes(zipfs.getPath(name), BasicFileAttributes.class);
+            var actual = Files.readAttributes(mapped.getPath(name), BasicFileAttributes.class);
+            assertEquals(expected.isDirectory(), actual.isDirectory(), name);
+            assertEquals(expected.size(), actual.size(), name);
+            assertEquals(expected.lastModifiedTime(), actual.lastModifiedTime(), name);
+            if (!expected.isDirectory())
+                assertArrayEquals(Files.readAllBytes(zipfs.getPath(name)), Files.readAllBytes(mapped.getPath(name)), name);
+        }
+        assertFalse(Files.exists(mapped.getPath("missing.txt")));
+
+        try (var stream = Files.list(mapped.getPath("subdir1"))) {
+            assertEquals(List.of("subdir1/masktestsd1.txt"), stream.map(Path::toString).toList());
+        }
+    }
+
     @Test
     void testFilteredDuplicate() {
         final var dir1 = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
@@ -204,6 +522,9 @@ public class TestUnionFS {
             }
         });
         var uri = path.toUri();
+        // Cached, but still has to match however the path was made
+        assertEquals(uri, outer.getPath("/masktest.txt").toUri());
+        assertEquals(uri, outer.getRoot().resolve("masktest.txt").toUri());
         var npath = Paths.get(uri);
         var input = assertDoesNotThrow(() -> Files.newInputStream(npath));
         var data = assertDoesNotThrow(() -> input.readAllBytes());
@@ -283,4 +604,51 @@ public class TestUnionFS {
             );
         }
     }
+
+    @Test
+    public void testDirectoryStreamMerged() throws Exception {
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+        final var dir2 = Paths.get("src", "test", "resources", "dir2").toAbsolutePath().normalize();
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+
+        final var fileSystem = UFSP.newFileSystem(dir1, Map.of("additional", List.of(dir2, zip)));
+        var names = new ArrayList<String>();
+        try (var dirStream = Files.newDirectoryStream(fileSystem.getPath("/"))) {
+            for (var path : dirStream)
+                names.add(path.toString());
+            assertThrows(IllegalStateException.class, dirStream::iterator, "Directory streams can only be iterated once");
+        }
+        assertEquals(Set.of("masktest.txt", "masktest2.txt", "masktest3.txt", "subdir1"), Set.copyOf(names));
+        assertEquals(Set.copyOf(names).size(), names.size(), "Duplicate entries: " + names);
+
+        // Closing early stops the listing instead of reading the rest of the bases
+        try (var dirStream = Files.newDirectoryStream(fileSystem.getPath("/"))) {
+            var itr = dirStream.iterator();
+            assertTrue(itr.hasNext());
+            itr.next();
+            dirStream.close();
+            assertFalse(itr.hasNext());
+        }
+    }
+
+    @Test
+    public void testURLConnection() throws Exception {
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+        final var zip = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+
+        final var fileSystem = UFSP.newFileSystem(dir1, Map.of("additional", List.of(zip)));
+        for (var name : List.of("masktest.txt", "subdir1/masktestsd1.txt")) {
+            var path = fileSystem.getPath(name);
+            var connection = path.toUri().toURL().openConnection();
+            assertEquals(Files.size(path), connection.getContentLengthLong(), "Wrong length for " + name);
+            assertEquals(Files.getLastModifiedTime(path).toMillis(), connection.getLastModified(), "Wrong last modified for " + name);
+            try (var in = connection.getInputStream()) {
+                assertArrayEquals(Files.readAllBytes(path), in.readAllBytes(), "Wrong content for " + name);
+            }
+        }
+
+        var missing = fileSystem.getPath("missing.txt").toUri().toURL().openConnection();
+        assertEquals(-1, missing.getContentLengthLong());
+        assertThrows(NoSuchFileException.class, missing::getInputStream);
+    }
 }
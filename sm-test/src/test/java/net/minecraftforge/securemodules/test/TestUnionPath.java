@@ -188,6 +188,14 @@ public class TestUnionPath {
         assertEquals(abs13, abs12up3.normalize());
         assertEquals(absUpUp1, absUpUp1.normalize());
         assertEquals(absUpUp123, absUpUp123.normalize());
+        // Clean paths don't need any work
+        assertSame(rel123, rel123.normalize());
+        assertSame(abs123, abs123.normalize());
+        assertSame(abs0, abs0.normalize());
+        assertSamePath(abs123, fs.getPath("/", "one", "two", "three"), "varargs");
+        assertSamePath(abs123, fs.getPath("/one\\two\\three"), "backslashes");
+        assertSamePath(rel123, fs.getPath("one/two/three/"), "trailing slash");
+        assertSamePath(rel1, fs.getPath(".one").resolveSibling("one"), "resolveSibling");
 
         // resolve
         assertEquals(abs32, rel0.resolve(abs32));
@@ -216,7 +224,7 @@ public class TestUnionPath {
 
         // getFileName
         if (names.length > 0) {
-            assertEquals(fs.getPath(names[names.length - 1]), path.getFileName());
+            assertSamePath(fs.getPath(names[names.length - 1]), path.getFileName(), path + " getFileName()");
         } else {
             assertEquals(fs.getPath(""), path.getFileName());
         }
@@ -229,8 +237,8 @@ public class TestUnionPath {
                 String[] fromEnd = new String[i];
                 System.arraycopy(names, names.length - i, fromEnd, 0, i);
                 if (fs.getPath("", fromStart).isAbsolute()) throw new IllegalStateException(Arrays.toString(fromStart));
-                assertEquals(fs.getPath("", fromStart), path.subpath(0, i), path + " subpath(0, " + i + ")");
-                assertEquals(fs.getPath("", fromEnd), path.subpath(names.length - i, names.length), path + " subpath(" + (names.length - i) + ", " + names.length + ")");
+                assertSamePath(fs.getPath("", fromStart), path.subpath(0, i), path + " subpath(0, " + i + ")");
+                assertSamePath(fs.getPath("", fromEnd), path.subpath(names.length - i, names.length), path + " subpath(" + (names.length - i) + ", " + names.length + ")");
 
                 String absStr = path.isAbsolute() ? "/" : "";
                 String oppositeAbsStr = path.isAbsolute() ? "" : "/";
@@ -255,4 +263,12 @@ public class TestUnionPath {
             assertEquals(fs.getPath(""), path.subpath(0, 1));
         }
     }
+
+    // Paths made from part of another path share its data, so make sure they still look exactly like a parsed one
+    private static void assertSamePath(Path expected, Path actual, String message) {
+        assertEquals(expected, actual, message);
+        assertEquals(expected.hashCode(), actual.hashCode(), message + " hashCode");
+        assertEquals(expected.toString(), actual.toString(), message + " toString");
+        assertEquals(0, expected.compareTo(actual), message + " compareTo");
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules.test;
+
+import cpw.mods.jarhandling.impl.SecureJarVerifier;
+import net.minecraftforge.unsafe.UnsafeHacks;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ZipDirectory is internal, so everything goes through reflection. Everything it reads is checked against walking the zip file system.
+public class TestZipDirectory {
+    private static final String MANIFEST = "Manifest-Version: 1.0\r\nMulti-Release: true\r\n\r\n";
+
+    @Test // A mix of stored and deflated entries, including the signature and service files
+    void testStoredAndDeflated(@TempDir Path tempDir) throws Exception {
+        var jar = tempDir.resolve("mixed.jar");
+        var entries = contents();
+        try (var zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            boolean stored = false;
+            for (var entry : entries.entrySet()) {
+                var ze = new ZipEntry(entry.getKey());
+                if (stored = !stored) {
+                    var crc = new CRC32();
+                    crc.update(entry.getValue());
+                    ze.setMethod(ZipEntry.STORED);
+                    ze.setSize(entry.getValue().length);
+                    ze.setCompressedSize(entry.getValue().length);
+                    ze.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(ze);
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+        assertMatches(jar);
+    }
+
+    @Test // Multi-release overrides should be picked the same way for every runtime version
+    void testMultiRelease(@TempDir Path tempDir) throws Exception {
+        var jar = tempDir.resolve("multirelease.jar");
+        write(jar, contents(), null);
+        assertMatches(jar);
+
+        var dir = read(jar);
+        for (int version : new int[] { 8, 9, 10, 11, 16, 17, 99 })
+            assertEquals(versionedFiles(jar, version), invoke(dir, "versionedFiles", version), "Mismatched overrides for java " + version);
+    }
+
+    @Test // The end header is searched for backwards, so a comment that looks like one shouldn't confuse it
+    void testCommented(@TempDir Path tempDir) throws Exception {
+        var jar = tempDir.resolve("commented.jar");
+        var comment = new StringBuilder("PK\u0005\u0006 Not really the end");
+        while (comment.length() < 0x8000)
+            comment.append(" padding");
+        write(jar, contents(), comment.toString());
+        assertMatches(jar);
+    }
+
+    @Test // Every size and offset is moved into zip64 extra fields, and the end header only points to the zip64 one
+    void testZip64(@TempDir Path tempDir) throws Exception {
+        var jar = tempDir.resolve("zip64.jar");
+        writeZip64(jar, contents());
+        assertMatches(jar);
+    }
+
+    private static Map<String, byte[]> contents() {
+        var ret = new LinkedHashMap<String, byte[]>();
+        ret.put("META-INF/MANIFEST.MF", MANIFEST.getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/TEST.SF", "Signature-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/TEST.RSA", new byte[] { 1, 2, 3, 4 });
+        ret.put("META-INF/services/test.Service", "test.Impl # A comment\n".getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/services/nested/not.Service", "test.Impl\n".getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/versions/9/test/Versioned.class", "nine".getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/versions/11/test/Versioned.class", "eleven".getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/versions/11/test/Eleven.class", "eleven".getBytes(StandardCharsets.UTF_8));
+        ret.put("META-INF/versions/99/test/Versioned.class", "future".getBytes(StandardCharsets.UTF_8));
+        ret.put("test/Versioned.class", "base".getBytes(StandardCharsets.UTF_8));
+        ret.put("test/Impl.class", "x".repeat(10_000).getBytes(StandardCharsets.UTF_8));
+        ret.put("test/empty.txt", new byte[0]);
+        ret.put("test/unicode/\u00fcber.txt", "\u00fcber".getBytes(StandardCharsets.UTF_8));
+        return ret;
+    }
+
+    private static void write(Path jar, Map<String, byte[]> entries, String comment) throws IOException {
+        try (var zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            if (comment != null)
+                zip.setComment(comment);
+            for (var entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+    }
+
+    // ZipOutputStream only uses zip64 when it has to, which would need a 4GB file, so write it by hand.
+    private static void writeZip64(Path jar, Map<String, byte[]> entries) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var cen = new ByteArrayOutputStream();
+        for (var entry : entries.entrySet()) {
+            var name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            var data = entry.getValue();
+            var crc = new CRC32();
+            crc.update(data);
+            var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(data);
+            deflater.finish();
+            var compressed = new ByteArrayOutputStream();
+            var buf = new byte[1024];
+            while (!deflater.finished())
+                compressed.write(buf, 0, deflater.deflate(buf));
+            deflater.end();
+            long offset = out.size();
+
+            var loc = le(30 + name.length + 20)
+                .putInt(0x04034b50).putShort((short)45).putShort((short)0x0800).putShort((short)8)
+                .putInt(0).putInt((int)crc.getValue()).putInt(-1).putInt(-1)
+                .putShort((short)name.length).putShort((short)20).put(name)
+                .putShort((short)1).putShort((short)16).putLong(data.length).putLong(compressed.size());
+            out.write(loc.array());
+            compressed.writeTo(out);
+
+            var header = le(46 + name.length + 28)
+                .putInt(0x02014b50).putShort((short)45).putShort((short)45).putShort((short)0x0800).putShort((short)8)
+                .putInt(0).putInt((int)crc.getValue()).putInt(-1).putInt(-1)
+                .putShort((short)name.length).putShort((short)28).putShort((short)0)
+                .putShort((short)0).putShort((short)0).putInt(0).putInt(-1).put(name)
+                .putShort((short)1).putShort((short)24).putLong(data.length).putLong(compressed.size()).putLong(offset);
+            cen.write(header.array());
+        }
+
+        long cenOffset = out.size();
+        cen.writeTo(out);
+        long end64 = out.size();
+        out.write(le(56)
+            .putInt(0x06064b50).putLong(44).putShort((short)45).putShort((short)45).putInt(0).putInt(0)
+            .putLong(entries.size()).putLong(entries.size()).putLong(cen.size()).putLong(cenOffset).array());
+        out.write(le(20).putInt(0x07064b50).putInt(0).putLong(end64).putInt(1).array());
+        out.write(le(22)
+            .putInt(0x06054b50).putShort((short)0).putShort((short)0).putShort((short)-1).putShort((short)-1)
+            .putInt(-1).putInt(-1).putShort((short)0).array());
+        Files.write(jar, out.toByteArray());
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void assertMatches(Path jar) throws Exception {
+        var dir = read(jar);
+        try (var fs = FileSystems.newFileSystem(jar)) {
+            var root = fs.getPath("/");
+            Set<String> files;
+            try (var walk = Files.walk(root)) {
+                files = walk.filter(Files::isRegularFile).map(p -> root.relativize(p).toString()).collect(Collectors.toSet());
+            }
+
+            @SuppressWarnings("unchecked")
+            var dirFiles = (List<String>)invoke(dir, "files");
+            assertEquals(files.size(), dirFiles.size(), "Duplicate files");
+            assertEquals(files, new HashSet<>(dirFiles), "Mismatched files");
+
+            Set<String> services;
+            try (var list = Files.list(root.resolve("META-INF/services"))) {
+                services = list.filter(Files::isRegularFile).map(p -> root.relativize(p).toString()).collect(Collectors.toSet());
+            }
+            assertEquals(services, new HashSet<>((List<?>)invoke(dir, "services")), "Mismatched services");
+
+            int runtime = Runtime.version().feature();
+            assertEquals(versionedFiles(jar, runtime), invoke(dir, "versionedFiles", runtime), "Mismatched multi-release overrides");
+
+            var manifest = invoke(dir, "manifest");
+            assertNotNull(manifest, "Missing manifest");
+            assertArrayEquals(Files.readAllBytes(root.resolve("META-INF/MANIFEST.MF")), readAll(dir, manifest), "Mismatched manifest");
+
+            var signatures = new HashMap<String, byte[]>();
+            for (var file : files) {
+                if (!file.equals("META-INF/MANIFEST.MF") && SecureJarVerifier.isSigningRelated(file))
+                    signatures.put(file, Files.readAllBytes(root.resolve(file)));
+            }
+            var found = (List<?>)invoke(dir, "signatures");
+            assertEquals(signatures.size(), found.size(), "Mismatched signature files");
+            for (var entry : found) {
+                var name = (String)invoke(entry, "name");
+                assertTrue(signatures.containsKey(name), "Unexpected signature file " + name);
+                assertArrayEquals(signatures.get(name), readAll(dir, entry), "Mismatched " + name);
+            }
+            assertEquals(!signatures.isEmpty(), invoke(dir, "isSigned"));
+        }
+    }
+
+    // The way Jar used to find multi-release overrides, walking the versions directory in the zip file system
+    private static Map<String, String> versionedFiles(Path jar, int runtime) throws IOException {
+        var ret = new HashMap<String, String>();
+        var versions = new HashMap<String, Integer>();
+        try (var fs = FileSystems.newFileSystem(jar); var walk = Files.walk(fs.getPath("/META-INF/versions"))) {
+            var root = fs.getPath("/");
+            walk.filter(Files::isRegularFile).map(root::relativize).forEach(path -> {
+                var ver = Integer.parseInt(path.getName(2).toString());
+                var key = path.subpath(3, path.getNameCount()).toString();
+                if (ver <= runtime && versions.getOrDefault(key, 0) < ver) {
+                    versions.put(key, ver);
+                    ret.put(key, path.toString());
+                }
+            });
+        }
+        return ret;
+    }
+
+    private static byte[] readAll(Object dir, Object entry) throws Exception {
+        try (var is = (InputStream)invoke(dir, "open", entry)) {
+            return is.readAllBytes();
+        }
+    }
+
+    private static Object read(Path jar) throws Exception {
+        var cls = Class.forName("cpw.mods.jarhandling.impl.ZipDirectory");
+        var mtd = cls.getDeclaredMethod("read", Path.class);
+        UnsafeHacks.setAccessible(mtd);
+        try {
+            return mtd.invoke(null, jar);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+    }
+
+    private static Object invoke(Object instance, String name, Object... args) throws Exception {
+        for (var mtd : instance.getClass().getDeclaredMethods()) {
+            if (!mtd.getName().equals(name) || mtd.getParameterCount() != args.length)
+                continue;
+            UnsafeHacks.setAccessible(mtd);
+            try {
+                return mtd.invoke(instance, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof Exception ex ? ex : e;
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
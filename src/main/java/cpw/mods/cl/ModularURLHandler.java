@@ -48,6 +48,9 @@ public class ModularURLHandler extends LayerAwareURLStreamHandlerFactory {
             ServiceLoader.load(layer, IURLProvider.class).stream()
                 .map(ServiceLoader.Provider::get)
                 .forEach(provider -> {
+                    // Real URLStreamHandlerProviders know more than just how to open a stream, so let them win
+                    if (super.createURLStreamHandler(provider.protocol()) != null)
+                        return;
                     handlers.put(provider.protocol(), Optional.of(new URLStreamHandler() {
                         @Override
                         protected URLConnection openConnection(URL u) throws IOException {
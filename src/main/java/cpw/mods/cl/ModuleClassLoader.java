@@ -64,6 +64,7 @@ public class ModuleClassLoader extends SecureModuleClassLoader {
     @Deprecated(forRemoval = true)
     public void setFallbackClassLoader(final ClassLoader fallbackClassLoader) {
         this.fallbackClassLoader = fallbackClassLoader;
+        this.clearNegativeLookupCaches();
     }
 
     /**
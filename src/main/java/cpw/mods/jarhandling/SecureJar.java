@@ -7,19 +7,25 @@ package cpw.mods.jarhandling;
 
 import cpw.mods.jarhandling.impl.Jar;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.module.ModuleDescriptor;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.security.CodeSigner;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
+import java.util.stream.Stream;
 
 public interface SecureJar {
     interface ModuleDataProvider {
@@ -29,9 +35,45 @@ public interface SecureJar {
         Optional<URI> findFile(String name);
         Optional<InputStream> open(final String name);
 
+        /**
+         * Lists the names of every file in this module, or null if this provider can not enumerate its contents.
+         */
+        default Stream<String> list() {
+            return null;
+        }
+
+        /**
+         * Reads the whole file, without growing and copying a buffer as it goes like {@link InputStream#readAllBytes()} does.
+         * The buffer may be read only, a view of a mapped jar, or reused once it's given to {@link #release(ByteBuffer)}, so don't hold on to it.
+         */
+        default Optional<ByteBuffer> read(final String name) {
+            return open(name).map(is -> {
+                try (is) {
+                    return ByteBuffer.wrap(is.readAllBytes());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        /**
+         * Gives back a buffer from {@link #read(String)} once it's been used, so that it can be reused.
+         */
+        default void release(final ByteBuffer buf) {
+        }
+
         Manifest getManifest();
 
         CodeSigner[] verifyAndGetSigners(String cname, byte[] bytes);
+
+        /**
+         * Same as {@link #verifyAndGetSigners(String, byte[])} for a buffer from {@link #read(String)}.
+         */
+        default CodeSigner[] verifyAndGetSigners(String cname, ByteBuffer bytes) {
+            var data = new byte[bytes.remaining()];
+            bytes.duplicate().get(data);
+            return verifyAndGetSigners(cname, data);
+        }
     }
 
     ModuleDataProvider moduleDataProvider();
@@ -49,9 +91,22 @@ public interface SecureJar {
     boolean hasSecurityData();
 
     static SecureJar from(final Path... paths) {
-        return from(jar -> JarMetadata.from(jar, paths), paths);
+        return new Jar(paths);
     }
 
+    /**
+     * Opens every set of paths on the specified executor, as if by {@link #from(Path...)}.
+     * The result is in the same order as the input, so handing it to SecureModuleFinder will
+     * resolve duplicate modules the same way as opening them one at a time.
+     */
+    static List<SecureJar> fromAll(List<Path[]> paths, Executor executor) {
+        return Jar.fromAll(paths, executor);
+    }
+
+    /**
+     * The filter is given each path relative to its base, and the base. A {@link cpw.mods.niofs.union.UnionPathFilter}
+     * can be checked without building those strings, and lets the jar skip whole directories it hides.
+     */
     static SecureJar from(BiPredicate<String, String> filter, final Path... paths) {
         return from(jar->JarMetadata.from(jar, paths), filter, paths);
     }
@@ -86,6 +141,25 @@ public interface SecureJar {
 
     Path getRootPath();
 
+    /**
+     * Starts verifying every signed entry in the background, so that classes don't have to be hashed when they are defined.
+     * Calling this again returns the same future. Does nothing for unsigned jars.
+     *
+     * @return A future that completes once everything has been verified
+     */
+    default CompletableFuture<Void> verifyAll(Executor executor) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * How many entries have been hashed by {@link #verifyAll(Executor)}, versus when something asked for them.
+     */
+    default VerificationStats getVerificationStats() {
+        return new VerificationStats(0, 0);
+    }
+
+    record VerificationStats(long eager, long onDemand) {}
+
     // TODO: [SM] Make this record into an interface for API
     record Provider(String serviceName, List<String> providers) {
         @Deprecated
@@ -7,17 +7,23 @@ package cpw.mods.jarhandling.impl;
 
 import cpw.mods.jarhandling.JarMetadata;
 import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.niofs.union.UnionFileSystem;
+import cpw.mods.niofs.union.UnionPath;
 import cpw.mods.util.ZipUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.module.ModuleDescriptor;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.spi.FileSystemProvider;
 import java.security.CodeSigner;
@@ -25,11 +31,18 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -37,23 +50,39 @@ import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import java.util.stream.Stream;
 
 public class Jar implements SecureJar {
     private static final CodeSigner[] EMPTY_CODESIGNERS = new CodeSigner[0];
+    private static final boolean EAGER_VERIFY = Boolean.parseBoolean(System.getProperty("securejarhandler.eagerVerify", "false"));
+    private static final boolean MAPPED_ZIP = Boolean.parseBoolean(System.getProperty("securejarhandler.mappedZip", "false"));
+    // Files up to this size are read into a direct buffer that is reused once it's released, 0 to always allocate a new one
+    private static final int READ_BUFFER_SIZE = Integer.getInteger("securejarhandler.readBufferSize", 64 * 1024);
+    // Null once taken, until it's released
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = ThreadLocal.withInitial(() -> READ_BUFFER_SIZE > 0 ? ByteBuffer.allocateDirect(READ_BUFFER_SIZE) : null);
     private static final FileSystemProvider UFSP = FileSystemProvider.installedProviders().stream()
         .filter(p -> "union".equalsIgnoreCase(p.getScheme()))
         .findFirst()
         .orElseThrow(() -> new IllegalStateException("Couldn't find UnionFileSystemProvider"));
     private final Manifest manifest;
-    private final Hashtable<String, CodeSigner[]> pendingSigners = new Hashtable<>();
-    private final Hashtable<String, CodeSigner[]> verifiedSigners = new Hashtable<>();
-    private final ManifestVerifier verifier = new ManifestVerifier();
-    private final Map<String, StatusData> statusData = new HashMap<>();
+    private final Map<String, CodeSigner[]> pendingSigners = new ConcurrentHashMap<>();
+    private final Map<String, CodeSigner[]> verifiedSigners = new ConcurrentHashMap<>();
+    private final ManifestVerifier verifier;
+    // Futures so that each entry is only ever hashed once, even if several threads ask for it at the same time.
+    private final Map<String, CompletableFuture<StatusData>> statusData = new ConcurrentHashMap<>();
+    // Results of entries that were hashed while they were read, waiting for someone to ask for their signers.
+    // Only trusted by verifyUntransformed, anyone else could have changed the array after it was read.
+    private final Map<String, Streamed> streamed = new ConcurrentHashMap<>();
+    private final ReferenceQueue<byte[]> staleStreamed = new ReferenceQueue<>();
+    private final LongAdder eagerVerified = new LongAdder();
+    private final LongAdder lazyVerified = new LongAdder();
+    private volatile CompletableFuture<Void> verifyAll;
     private final JarMetadata metadata;
     private final Path filesystemRoot;
     private final Path filesystemPrimary;
     private final Map<String, String> nameOverrides;
     private final JarModuleDataProvider moduleDataProvider;
+    private final List<String> files;
     private final Set<String> packages;
     private final List<Provider> providers;
 
@@ -68,12 +97,24 @@ public class Jar implements SecureJar {
     }
 
     public Jar(Function<SecureJar, JarMetadata> metadataFunction, BiPredicate<String, String> pathfilter, Path... paths) {
-        this(null, metadataFunction, pathfilter, paths);
+        this(null, metadataFunction, pathfilter, (JarMetadataCache)null, paths);
+    }
+
+    /**
+     * Creates a jar using the default {@link JarMetadata}, which allows the results of scanning the jar to be cached.
+     * See {@link JarMetadataCache}
+     */
+    public Jar(Path... paths) {
+        this(null, jar -> JarMetadata.from(jar, paths), null, JarMetadataCache.get(), paths);
     }
 
     /** Supplying a manifest is stupid. */
     @Deprecated(forRemoval = true, since = "2.2")
     public Jar(Supplier<Manifest> defaultManifest, Function<SecureJar, JarMetadata> metadataFunction, BiPredicate<String, String> pathfilter, Path... paths) {
+        this(defaultManifest, metadataFunction, pathfilter, (JarMetadataCache)null, paths);
+    }
+
+    private Jar(Supplier<Manifest> defaultManifest, Function<SecureJar, JarMetadata> metadataFunction, BiPredicate<String, String> pathfilter, JarMetadataCache cache, Path... paths) {
         var validPaths = Arrays.stream(paths)
             .map(Path::toAbsolutePath)
             .map(Path::normalize)
@@ -86,11 +127,113 @@ public class Jar implements SecureJar {
 
         this.filesystemRoot = newFileSystem(pathfilter, validPaths);
         this.filesystemPrimary = validPaths[validPaths.length - 1];
-        this.manifest = findManifest(validPaths, defaultManifest);
-        this.nameOverrides = gatherVersionedFiles();
-        this.providers = gatherProviders(pathfilter);
-        this.packages = gatherPackages();
-        this.metadata = metadataFunction.apply(this);
+
+        var key = cache == null ? null : cache.key(validPaths);
+        var cached = key == null ? null : cache.load(key);
+        if (cached != null) {
+            // Signers have to come from the jar itself, and so does knowing if there are any. Otherwise a stale or
+            // tampered cache entry could make a signed jar load without its signatures.
+            // The central directory isn't needed for that, signed manifests are always read through a JarInputStream.
+            this.manifest = hasSignatureFiles() ? findManifest(validPaths, defaultManifest, null) : cached.manifest();
+            this.verifier = new ManifestVerifier(this.manifest);
+            this.nameOverrides = cached.nameOverrides();
+            this.providers = cached.providers();
+            this.files = cached.files();
+            this.packages = gatherPackages();
+            this.metadata = JarMetadataCache.metadata(cached.descriptor());
+        } else {
+            var directory = readDirectory(pathfilter, validPaths);
+            this.manifest = findManifest(validPaths, defaultManifest, directory);
+            this.verifier = new ManifestVerifier(this.manifest);
+            this.nameOverrides = gatherVersionedFiles(directory);
+            this.providers = gatherProviders(directory, pathfilter);
+            this.files = gatherFiles(directory);
+            this.packages = gatherPackages();
+            this.metadata = metadataFunction.apply(this);
+
+            if (key != null)
+                cache.save(key, new JarMetadataCache.Entry(manifest, nameOverrides, providers, files, metadata.descriptor()));
+        }
+
+        if (EAGER_VERIFY)
+            verifyAll(ForkJoinPool.commonPool());
+    }
+
+    /* Public for SecureJar only */
+    public static List<SecureJar> fromAll(List<Path[]> paths, Executor executor) {
+        var futures = new ArrayList<CompletableFuture<SecureJar>>(paths.size());
+        for (var path : paths)
+            futures.add(CompletableFuture.supplyAsync(() -> new Jar(path), executor));
+
+        // Wait for all of them, so that if one fails we can close the others instead of leaking them.
+        var ret = new ArrayList<SecureJar>(paths.size());
+        Throwable error = null;
+        for (var future : futures) {
+            try {
+                ret.add(future.join());
+            } catch (CompletionException e) {
+                var cause = e.getCause() == null ? e : e.getCause();
+                if (error == null)
+                    error = cause;
+                else
+                    error.addSuppressed(cause);
+            }
+        }
+
+        if (error != null) {
+            for (var jar : ret) {
+                try {
+                    ((Jar)jar).closeFileSystem();
+                } catch (IOException | RuntimeException e) {
+                    error.addSuppressed(e);
+                }
+            }
+            return sneak(error);
+        }
+        return ret;
+    }
+
+    @Override
+    public CompletableFuture<Void> verifyAll(Executor executor) {
+        var ret = this.verifyAll;
+        if (ret != null)
+            return ret;
+
+        synchronized (this) {
+            if (this.verifyAll != null)
+                return this.verifyAll;
+
+            if (!hasSecurityData()) {
+                ret = CompletableFuture.completedFuture(null);
+            } else {
+                var tasks = new ArrayList<CompletableFuture<Void>>();
+                // Checking the entry is there touches the file system, so leave that to the executor as well
+                for (var entry : verifier.entries()) {
+                    if (!statusData.containsKey(entry))
+                        tasks.add(CompletableFuture.runAsync(() -> verifyEagerly(entry), executor));
+                }
+                ret = CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new));
+            }
+            this.verifyAll = ret;
+            return ret;
+        }
+    }
+
+    private void verifyEagerly(String entry) {
+        var path = this.filesystemRoot.resolve(entry);
+        if (statusData.containsKey(entry) || !Files.exists(path))
+            return;
+
+        try {
+            verifyEntry(entry, name -> verifyStream(name, path), true);
+        } catch (RuntimeException e) {
+            // Leave it for whoever asks for it, so they get the error
+        }
+    }
+
+    @Override
+    public VerificationStats getVerificationStats() {
+        return new VerificationStats(this.eagerVerified.sum(), this.lazyVerified.sum());
     }
 
     @Override
@@ -107,13 +250,28 @@ public class Jar implements SecureJar {
         if (statusData.containsKey(pathname))
             return getFileStatus(pathname);
 
-        try {
-            var bytes = Files.readAllBytes(path);
-            verifyAndGetSigners(pathname, bytes);
-            return getFileStatus(pathname);
+        verify(pathname, name -> verifyStream(name, path));
+        return getFileStatus(pathname);
+    }
+
+    /**
+     * Hashes the file as we read it instead of loading the whole thing into memory first
+     */
+    private Optional<CodeSigner[]> verifyStream(String name, Path path) {
+        var digester = verifier.digester(name, true);
+        if (digester == null)
+            return Optional.empty();
+
+        try (var is = Files.newInputStream(path)) {
+            var buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) != -1)
+                digester.update(buf, 0, read);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+
+        return digester.finish() ? verifier.signers(pendingSigners, verifiedSigners, name) : null;
     }
 
     @Override
@@ -188,7 +346,10 @@ public class Jar implements SecureJar {
                 var uri = paths[0].toUri();
                 var scheme = uri.getScheme();
 
-                if ("file".equals(scheme) || "jar".equals(scheme) || "roimfs".equals(scheme)) {
+                if (MAPPED_ZIP && "file".equals(scheme)) {
+                    // Our own zip file system can't be found by jar: URIs, so it's wrapped up like anything else
+                    fs = UFSP.newFileSystem(paths[0], Map.of("filter", (BiPredicate<String, String>)(a, b) -> true, "mapped", true));
+                } else if ("file".equals(scheme) || "jar".equals(scheme) || "roimfs".equals(scheme)) {
                     // We have to manually open the jar files up via a URI instead of a Path
                     // because the ZipFileSystem implementation only caches the FileSystems
                     // when accessed that way. But we can only open it once or else it throws
@@ -227,36 +388,211 @@ public class Jar implements SecureJar {
         return fs.getRootDirectories().iterator().next();
     }
 
+    /**
+     * Closes our file system if it was made just for us. Plain jars and directories use file systems that
+     * the JDK shares with anything else that opened the same path, so those are left alone.
+     */
+    private void closeFileSystem() throws IOException {
+        var fs = this.filesystemRoot.getFileSystem();
+        if (fs.provider() == UFSP)
+            fs.close();
+    }
+
+    /**
+     * If we are a single plain jar file, read its central directory so that we can gather everything
+     * we need in one pass. Only done when there is nothing cached for this jar. Returns null if we need to go through the file system instead.
+     */
+    private static ZipDirectory readDirectory(BiPredicate<String, String> filter, Path[] paths) {
+        if (filter != null || paths.length != 1 || paths[0].getFileSystem() != FileSystems.getDefault() || !Files.isRegularFile(paths[0]))
+            return null;
+
+        try {
+            return ZipDirectory.read(paths[0]);
+        } catch (IOException e) {
+            // Let the zip file system deal with whatever this is.
+            return null;
+        }
+    }
+
     /** Public for API compat, will break soon-ish */
-    public synchronized CodeSigner[] verifyAndGetSigners(String name, byte[] bytes) {
+    public CodeSigner[] verifyAndGetSigners(String name, byte[] bytes) {
+        // Always hashed, even if we streamed this array, the caller could have changed its contents since then.
+        return verify(name, entry -> verifier.verify(pendingSigners, verifiedSigners, entry, bytes));
+    }
+
+    /**
+     * Public for SecureModuleClassLoader only.
+     * Same as {@link ModuleDataProvider#verifyAndGetSigners(String, byte[])}, but if the array was just read from
+     * {@link ModuleDataProvider#open(String)} with readAllBytes, it was already hashed on the way in.
+     * Only safe if nothing could have touched the array since it was read, so there must be no transformers.
+     */
+    public static CodeSigner[] verifyUntransformed(ModuleDataProvider provider, String name, byte[] bytes) {
+        if (provider instanceof JarModuleDataProvider data)
+            return data.jar().verifyUntransformed(name, bytes);
+        return provider.verifyAndGetSigners(name, bytes);
+    }
+
+    private CodeSigner[] verifyUntransformed(String name, byte[] bytes) {
+        return verify(name, entry -> {
+            var pre = this.streamed.remove(entry);
+            if (pre != null && pre.get() == bytes)
+                return pre.valid ? verifier.signers(pendingSigners, verifiedSigners, entry) : null;
+            return verifier.verify(pendingSigners, verifiedSigners, entry, bytes);
+        });
+    }
+
+    /**
+     * Reads the whole file into a new buffer of exactly the right size. If pooled, and it fits, this thread's reusable
+     * buffer is used instead. It's taken from the thread until it's released, so nested reads fall back to a new buffer.
+     * Only callers that always release may ask for the pooled buffer, anyone else would just churn through direct memory.
+     */
+    private static ByteBuffer readFully(Path path, boolean pooled) throws IOException {
+        try (var ch = Files.newByteChannel(path)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE - 8)
+                throw new OutOfMemoryError("Required array size too large: " + path);
+
+            ByteBuffer buf = null;
+            if (pooled && size <= READ_BUFFER_SIZE) {
+                buf = READ_BUFFERS.get();
+                if (buf != null)
+                    READ_BUFFERS.set(null);
+            }
+            var taken = buf;
+            if (buf == null)
+                buf = ByteBuffer.allocate((int)size);
+
+            try {
+                buf.clear().limit((int)size);
+                while (buf.hasRemaining() && ch.read(buf) != -1);
+                return buf.flip();
+            } catch (IOException | RuntimeException e) {
+                if (taken != null)
+                    READ_BUFFERS.set(taken);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Public for SecureModuleClassLoader only.
+     * Same as {@link ModuleDataProvider#read(String)}, but may use this thread's reusable buffer, so the caller must always
+     * give it back to {@link ModuleDataProvider#release(ByteBuffer)}.
+     */
+    public static Optional<ByteBuffer> readPooled(ModuleDataProvider provider, String name) {
+        if (provider instanceof JarModuleDataProvider data)
+            return data.read(name, true);
+        return provider.read(name);
+    }
+
+    /**
+     * Public for SecureModuleClassLoader only.
+     * Returns true if the contents can't change while we're open, so listing them once is enough.
+     * Plain directories can be changed at any time, so they never are.
+     */
+    public static boolean isStatic(ModuleDataProvider provider) {
+        if (!(provider instanceof JarModuleDataProvider data))
+            return false;
+        var fs = data.jar.filesystemRoot.getFileSystem();
+        if (fs instanceof UnionFileSystem ufs)
+            return ufs.isStatic();
+        return "jar".equalsIgnoreCase(fs.provider().getScheme());
+    }
+
+    /**
+     * Public for SecureModuleClassLoader only.
+     * Same as {@link ModuleDataProvider#open(String)}, but signed classes are hashed as they're read so that
+     * {@link #verifyUntransformed} doesn't have to hash them again. Only for callers that will define exactly those bytes.
+     */
+    public static Optional<InputStream> openVerifying(ModuleDataProvider provider, String name) {
+        if (provider instanceof JarModuleDataProvider data)
+            return data.open(name, true);
+        return provider.open(name);
+    }
+
+    /**
+     * Same as {@link #verifyAndGetSigners(String, byte[])}, but only copies the data out of the buffer if there is something to verify.
+     */
+    CodeSigner[] verifyAndGetSigners(String name, ByteBuffer bytes) {
+        return verify(name, entry -> {
+            var data = new byte[bytes.remaining()];
+            bytes.duplicate().get(data);
+            return verifier.verify(pendingSigners, verifiedSigners, entry, data);
+        });
+    }
+
+    /**
+     * Verifies an entry at most once, the verify function returns the same values as {@link ManifestVerifier#verify}
+     */
+    private CodeSigner[] verify(String name, Function<String, Optional<CodeSigner[]>> verify) {
         if (!hasSecurityData())
             return null;
 
         // If we're a multi-release jar we need to be sure to check the correct entry.
-        name = this.nameOverrides.getOrDefault(name, name);
+        return verifyEntry(this.nameOverrides.getOrDefault(name, name), verify, false);
+    }
 
-        var data = statusData.get(name);
-        if (data != null)
-            return data.signers();
+    private CodeSigner[] verifyEntry(String name, Function<String, Optional<CodeSigner[]>> verify, boolean eager) {
+        var existing = statusData.get(name);
+        if (existing != null)
+            return existing.join().signers();
 
-        var signers = verifier.verify(this.manifest, pendingSigners, verifiedSigners, name, bytes);
-        if (signers == null) {
-            this.statusData.put(name, new StatusData(Status.INVALID, null));
-            return null;
-        } else {
-            var ret = signers.orElse(null);
-            this.statusData.put(name, new StatusData(Status.VERIFIED, ret));
-            return ret;
+        var future = new CompletableFuture<StatusData>();
+        existing = statusData.putIfAbsent(name, future);
+        if (existing != null)
+            return existing.join().signers();
+
+        try {
+            var signers = verify.apply(name);
+            (eager ? this.eagerVerified : this.lazyVerified).increment();
+            var data = signers == null ? new StatusData(Status.INVALID, null) : new StatusData(Status.VERIFIED, signers.orElse(null));
+            future.complete(data);
+            this.streamed.remove(name);
+            return data.signers();
+        } catch (Throwable t) {
+            // Let someone else try again
+            statusData.remove(name, future);
+            future.completeExceptionally(t);
+            throw t;
         }
     }
 
+    /**
+     * Wraps the stream so that it's hashed as it's read, if it needs to be verified.
+     */
+    private InputStream verifying(String name, InputStream in) {
+        if (!hasSecurityData() || !name.endsWith(".class") || statusData.containsKey(name))
+            return in;
+        var digester = verifier.digester(name, false);
+        return digester == null ? in : new VerifyingInputStream(this, name, digester, in);
+    }
+
+    /**
+     * Called by VerifyingInputStream once it has read and hashed an entire entry.
+     */
+    void streamed(String name, byte[] data, boolean valid) {
+        // Classes that are read but never defined would stay here forever, so forget them once their data is gone.
+        for (Object stale; (stale = this.staleStreamed.poll()) != null; )
+            this.streamed.remove(((Streamed)stale).name, stale);
+
+        if (!statusData.containsKey(name))
+            this.streamed.put(name, new Streamed(name, data, valid, this.staleStreamed));
+    }
+
     @SuppressWarnings("unchecked")
     private static <E extends Throwable, R> R sneak(Throwable e) throws E {
         throw (E)e;
     }
 
     private Optional<StatusData> getData(final String name) {
-        return Optional.ofNullable(statusData.get(name));
+        var future = statusData.get(name);
+        if (future == null)
+            return Optional.empty();
+        try {
+            return Optional.of(future.join());
+        } catch (CompletionException | CancellationException e) {
+            return Optional.empty();
+        }
     }
 
     public Manifest getManifest() {
@@ -281,7 +617,24 @@ public class Jar implements SecureJar {
 
     private record StatusData(Status status, CodeSigner[] signers) {}
 
-    private List<Provider> gatherProviders(BiPredicate<String, String> filter) {
+    private static final class Streamed extends WeakReference<byte[]> {
+        private final String name;
+        private final boolean valid;
+
+        private Streamed(String name, byte[] data, boolean valid, ReferenceQueue<byte[]> queue) {
+            super(data, queue);
+            this.name = name;
+            this.valid = valid;
+        }
+    }
+
+    private List<Provider> gatherProviders(ZipDirectory directory, BiPredicate<String, String> filter) {
+        if (directory != null) {
+            return directory.services().stream()
+                .map(name -> getProvider(this.filesystemRoot.resolve(name), filter))
+                .toList();
+        }
+
         var services = this.filesystemRoot.resolve("META-INF/services/");
         if (!Files.exists(services))
             return List.of();
@@ -323,9 +676,15 @@ public class Jar implements SecureJar {
         }
     }
 
-    private Map<String, String> gatherVersionedFiles() {
+    private Map<String, String> gatherVersionedFiles(ZipDirectory directory) {
+        if (!Boolean.parseBoolean(getManifest().getMainAttributes().getValue("Multi-Release")))
+            return Map.of();
+
+        if (directory != null)
+            return directory.versionedFiles(Runtime.version().feature());
+
         var versionsDir = this.filesystemRoot.resolve("META-INF/versions");
-        if (!Boolean.parseBoolean(getManifest().getMainAttributes().getValue("Multi-Release")) || !Files.exists(versionsDir))
+        if (!Files.exists(versionsDir))
             return Map.of();
 
         var ret = new HashMap<String, String>();
@@ -348,29 +707,66 @@ public class Jar implements SecureJar {
         return ret;
     }
 
-    private Set<String> gatherPackages() {
-        var files = new HashSet<String>(this.nameOverrides.keySet());
-        try {
-            Files.walk(this.filesystemRoot)
-                .filter(p -> Files.isRegularFile(p) && !"META-INF".equals(p.getName(0).toString()))
+    /**
+     * Gathers the names of every file, from the central directory if we have it, otherwise by walking
+     * the entire file system once. This includes the logical names of any multi-release overrides.
+     * This is kept so that consumers can index our contents without probing the file system.
+     */
+    private List<String> gatherFiles(ZipDirectory directory) {
+        var files = new LinkedHashSet<String>(this.nameOverrides.keySet());
+        if (directory != null) {
+            files.addAll(directory.files());
+            return List.copyOf(files);
+        }
+
+        try (var walk = Files.walk(this.filesystemRoot)) {
+            walk.filter(Files::isRegularFile)
                 .map(p -> this.filesystemRoot.relativize(p).toString().replace('\\', '/'))
                 .forEach(files::add);
         } catch (IOException e) {
             return sneak(e);
         }
+        return List.copyOf(files);
+    }
 
+    private Set<String> gatherPackages() {
         var ret = new HashSet<String>();
-        for (var file : files) {
+        for (var file : this.files) {
             int idx = file.lastIndexOf('/');
-            if (idx == -1 || !file.endsWith(".class"))
+            if (idx == -1 || !file.endsWith(".class") || file.startsWith("META-INF/"))
                 continue;
             ret.add(file.substring(0, idx).replace('/', '.'));
         }
         return ret;
     }
 
-    private Manifest findManifest(Path[] paths, Supplier<Manifest> defaultManifest) {
+    private boolean hasSignatureFiles() {
+        var metaInf = this.filesystemRoot.resolve("META-INF");
+        if (!Files.isDirectory(metaInf))
+            return false;
+
+        try (var stream = Files.list(metaInf)) {
+            return stream.anyMatch(path -> {
+                var name = "META-INF/" + path.getFileName();
+                return !JarFile.MANIFEST_NAME.equalsIgnoreCase(name) && SecureJarVerifier.isSigningRelated(name);
+            });
+        } catch (IOException e) {
+            return sneak(e);
+        }
+    }
+
+    private Manifest findManifest(Path[] paths, Supplier<Manifest> defaultManifest, ZipDirectory directory) {
         try {
+            // Signed jars need to go through the JarInputStream so that the signature files are verified.
+            if (directory != null && !directory.isSigned()) {
+                if (directory.manifest() != null) {
+                    try (var is = directory.open(directory.manifest())) {
+                        return new Manifest(is);
+                    }
+                }
+                return defaultManifest != null ? defaultManifest.get() : new Manifest();
+            }
+
             for (int x = paths.length - 1; x >= 0; x--) { // Walk backwards because this is what cpw wanted?
                 var path = paths[x];
                 if (Files.isDirectory(path)) {
@@ -395,7 +791,7 @@ public class Jar implements SecureJar {
                                 var manifestSigners = SecureJarVerifier.getVerifiedSigners(jv).get(JarFile.MANIFEST_NAME);
                                 if (manifestSigners != null)
                                     verifiedSigners.put(JarFile.MANIFEST_NAME, manifestSigners);
-                                this.statusData.put(JarFile.MANIFEST_NAME, new StatusData(Status.VERIFIED, manifestSigners));
+                                this.statusData.put(JarFile.MANIFEST_NAME, CompletableFuture.completedFuture(new StatusData(Status.VERIFIED, manifestSigners)));
                             }
                         }
 
@@ -433,6 +829,10 @@ public class Jar implements SecureJar {
 
         @Override
         public Optional<InputStream> open(String name) {
+            return open(name, false);
+        }
+
+        private Optional<InputStream> open(String name, boolean verifying) {
             // Path.toURI() can sometimes return URIs that are invalid syntax/can't be passed to Paths.get
             // Specifically ZipPath and jars with []'s. https://github.com/MinecraftForge/MinecraftForge/issues/9842
             // So bypass all of that and get the InputStream from the path itself.
@@ -440,7 +840,8 @@ public class Jar implements SecureJar {
             var resolved = jar.filesystemRoot.resolve(name);
             if (Files.exists(resolved)) {
                 try {
-                    return Optional.of(Files.newInputStream(resolved));
+                    var in = Files.newInputStream(resolved);
+                    return Optional.of(verifying ? jar.verifying(name, in) : in);
                 } catch (IOException e) {
                     return sneak(e);
                 }
@@ -448,6 +849,37 @@ public class Jar implements SecureJar {
             return Optional.empty();
         }
 
+        @Override
+        public Optional<ByteBuffer> read(String name) {
+            return read(name, false);
+        }
+
+        private Optional<ByteBuffer> read(String name, boolean pooled) {
+            name = jar.nameOverrides.getOrDefault(name, name);
+            var resolved = jar.filesystemRoot.resolve(name);
+            try {
+                if (resolved instanceof UnionPath upath)
+                    return Optional.of(upath.getFileSystem().read(upath));
+                return Optional.of(readFully(resolved, pooled));
+            } catch (NoSuchFileException e) {
+                return Optional.empty();
+            } catch (IOException e) {
+                return sneak(e);
+            }
+        }
+
+        @Override
+        public void release(ByteBuffer buf) {
+            // Only our own read buffers are writable direct buffers, mapped ones are read only
+            if (READ_BUFFER_SIZE > 0 && buf.isDirect() && !buf.isReadOnly() && buf.capacity() == READ_BUFFER_SIZE)
+                READ_BUFFERS.set(buf);
+        }
+
+        @Override
+        public Stream<String> list() {
+            return jar.files.stream();
+        }
+
         @Override
         public Manifest getManifest() {
             return jar.getManifest();
@@ -457,5 +889,10 @@ public class Jar implements SecureJar {
         public CodeSigner[] verifyAndGetSigners(final String cname, final byte[] bytes) {
             return jar.verifyAndGetSigners(cname, bytes);
         }
+
+        @Override
+        public CodeSigner[] verifyAndGetSigners(final String cname, final ByteBuffer bytes) {
+            return jar.verifyAndGetSigners(cname, bytes);
+        }
     }
 }
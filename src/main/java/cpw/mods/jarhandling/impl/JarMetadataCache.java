@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.jarhandling.JarMetadata;
+import cpw.mods.jarhandling.SecureJar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.module.ModuleDescriptor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Manifest;
+
+/**
+ * Opt-in cache that stores everything we learn from walking a jar, so that a restart with the same jars doesn't need to scan them again.
+ * Enabled by setting the {@code securejarhandler.cacheDir} system property to a directory we can write to.
+ * Entries are keyed by the path, size and modified time of each jar. Setting {@code securejarhandler.cacheHash}
+ * to true will also require the content hash of each jar to match, at the cost of reading every jar in full.
+ *
+ * Code signers are intentionally not read from the cache, they come from the jar itself so they can't be forged
+ * by anyone who can write to the cache directory.
+ */
+class JarMetadataCache {
+    private static final boolean DEBUG = Boolean.parseBoolean(System.getProperty("securejarhandler.debugCache", "false"));
+    private static final String CACHE_DIR = System.getProperty("securejarhandler.cacheDir");
+    private static final boolean HASH = Boolean.parseBoolean(System.getProperty("securejarhandler.cacheHash", "false"));
+    private static final int FORMAT = 2;
+
+    private static final JarMetadataCache INSTANCE = CACHE_DIR == null ? null : new JarMetadataCache(Paths.get(CACHE_DIR));
+
+    /**
+     * Returns the cache, or null if caching is disabled.
+     */
+    static JarMetadataCache get() {
+        return INSTANCE;
+    }
+
+    private final Path root;
+
+    JarMetadataCache(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Everything Jar would normally gather by walking its file system.
+     * Whether the jar is signed isn't stored, Jar checks the jar itself and reads the manifest again if it is.
+     */
+    record Entry(Manifest manifest, Map<String, String> nameOverrides, List<SecureJar.Provider> providers, List<String> files, ModuleDescriptor descriptor) {}
+
+    /**
+     * The identity of a set of paths, null if any of them can't be cached.
+     */
+    record Key(String file, byte[] stamp) {}
+
+    private record CachedMetadata(ModuleDescriptor descriptor) implements JarMetadata {
+        @Override
+        public String name() {
+            return descriptor.name();
+        }
+
+        @Override
+        public String version() {
+            return descriptor.rawVersion().orElse(null);
+        }
+    }
+
+    static JarMetadata metadata(ModuleDescriptor descriptor) {
+        return new CachedMetadata(descriptor);
+    }
+
+    /**
+     * Only plain files on the default file system can be cached, directories and nested jars can change without us knowing.
+     */
+    Key key(Path[] paths) {
+        try {
+            var bytes = new ByteArrayOutputStream();
+            var out = new DataOutputStream(bytes);
+            var name = new StringBuilder();
+            out.writeInt(FORMAT);
+            out.writeInt(Runtime.version().feature()); // Multi-release overrides depend on the running version
+            out.writeInt(paths.length);
+            for (var path : paths) {
+                if (path.getFileSystem() != FileSystems.getDefault() || !Files.isRegularFile(path))
+                    return null;
+
+                var str = path.toString();
+                name.append(str).append('\n');
+                out.writeUTF(str);
+                out.writeLong(Files.size(path));
+                out.writeLong(Files.getLastModifiedTime(path).toMillis());
+                out.writeBoolean(HASH);
+                if (HASH)
+                    writeBytes(out, hash(Files.newInputStream(path)));
+            }
+            out.flush();
+            var file = SecureJarVerifier.toHexString(hash(new ByteArrayInputStream(name.toString().getBytes(StandardCharsets.UTF_8))));
+            return new Key(file, bytes.toByteArray());
+        } catch (IOException e) {
+            log("Failed to compute key for " + Arrays.toString(paths) + ": " + e);
+            return null;
+        }
+    }
+
+    Entry load(Key key) {
+        var file = this.root.resolve(key.file() + ".bin");
+        if (!Files.exists(file))
+            return null;
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            var stamp = readBytes(in);
+            if (!Arrays.equals(stamp, key.stamp())) {
+                log("Stale cache entry " + file);
+                return null;
+            }
+
+            var manifest = new Manifest(new ByteArrayInputStream(readBytes(in)));
+
+            var overrides = new HashMap<String, String>();
+            for (int x = in.readInt(); x > 0; x--)
+                overrides.put(in.readUTF(), in.readUTF());
+
+            var providers = new ArrayList<SecureJar.Provider>();
+            for (int x = in.readInt(); x > 0; x--)
+                providers.add(new SecureJar.Provider(in.readUTF(), readStrings(in)));
+
+            var files = readStrings(in);
+            var descriptor = readDescriptor(in);
+
+            log("Loaded cache entry " + file);
+            return new Entry(manifest, Map.copyOf(overrides), List.copyOf(providers), files, descriptor);
+        } catch (IOException | RuntimeException e) {
+            log("Failed to read cache entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    void save(Key key, Entry entry) {
+        var file = this.root.resolve(key.file() + ".bin");
+        Path tmp = null;
+        try {
+            Files.createDirectories(this.root);
+            tmp = Files.createTempFile(this.root, key.file(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                writeBytes(out, key.stamp());
+
+                var manifest = new ByteArrayOutputStream();
+                entry.manifest().write(manifest);
+                writeBytes(out, manifest.toByteArray());
+
+                out.writeInt(entry.nameOverrides().size());
+                for (var e : entry.nameOverrides().entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+
+                out.writeInt(entry.providers().size());
+                for (var provider : entry.providers()) {
+                    out.writeUTF(provider.serviceName());
+                    writeStrings(out, provider.providers());
+                }
+
+                writeStrings(out, entry.files());
+                writeDescriptor(out, entry.descriptor());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log("Saved cache entry " + file);
+        } catch (IOException | RuntimeException e) {
+            log("Failed to write cache entry " + file + ": " + e);
+            try {
+                if (tmp != null)
+                    Files.deleteIfExists(tmp);
+            } catch (IOException suppressed) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    /*==============================================================================================*
+     *                                SERIALIZATION                                                 *
+     *==============================================================================================*/
+
+    private static void writeDescriptor(DataOutputStream out, ModuleDescriptor desc) throws IOException {
+        out.writeUTF(desc.name());
+        writeEnums(out, desc.modifiers());
+        writeNullable(out, desc.rawVersion().orElse(null));
+        writeNullable(out, desc.mainClass().orElse(null));
+        writeStrings(out, desc.packages());
+        writeStrings(out, desc.uses());
+
+        // Automatic modules can't declare these, they're implied
+        if (desc.isAutomatic()) {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+        } else {
+            out.writeInt(desc.requires().size());
+            for (var req : desc.requires()) {
+                out.writeUTF(req.name());
+                writeEnums(out, req.modifiers());
+                writeNullable(out, req.rawCompiledVersion().orElse(null));
+            }
+
+            out.writeInt(desc.exports().size());
+            for (var exp : desc.exports()) {
+                out.writeUTF(exp.source());
+                writeEnums(out, exp.modifiers());
+                writeStrings(out, exp.targets());
+            }
+
+            out.writeInt(desc.opens().size());
+            for (var opn : desc.opens()) {
+                out.writeUTF(opn.source());
+                writeEnums(out, opn.modifiers());
+                writeStrings(out, opn.targets());
+            }
+        }
+
+        out.writeInt(desc.provides().size());
+        for (var prov : desc.provides()) {
+            out.writeUTF(prov.service());
+            writeStrings(out, prov.providers());
+        }
+    }
+
+    private static ModuleDescriptor readDescriptor(DataInputStream in) throws IOException {
+        var name = in.readUTF();
+        var modifiers = readEnums(in, ModuleDescriptor.Modifier.values());
+        var builder = ModuleDescriptor.newModule(name, modifiers);
+
+        var version = readNullable(in);
+        if (version != null)
+            builder.version(version);
+        var main = readNullable(in);
+        if (main != null)
+            builder.mainClass(main);
+        builder.packages(new HashSet<>(readStrings(in)));
+        readStrings(in).forEach(builder::uses);
+
+        for (int x = in.readInt(); x > 0; x--) {
+            var req = in.readUTF();
+            var mods = readEnums(in, ModuleDescriptor.Requires.Modifier.values());
+            var ver = readNullable(in);
+            if (ver != null)
+                builder.requires(mods, req, ModuleDescriptor.Version.parse(ver));
+            else
+                builder.requires(mods, req);
+        }
+
+        for (int x = in.readInt(); x > 0; x--) {
+            var source = in.readUTF();
+            var mods = readEnums(in, ModuleDescriptor.Exports.Modifier.values());
+            var targets = readStrings(in);
+            if (targets.isEmpty())
+                builder.exports(mods, source);
+            else
+                builder.exports(mods, source, new HashSet<>(targets));
+        }
+
+        for (int x = in.readInt(); x > 0; x--) {
+            var source = in.readUTF();
+            var mods = readEnums(in, ModuleDescriptor.Opens.Modifier.values());
+            var targets = readStrings(in);
+            if (targets.isEmpty())
+                builder.opens(mods, source);
+            else
+                builder.opens(mods, source, new HashSet<>(targets));
+        }
+
+        for (int x = in.readInt(); x > 0; x--)
+            builder.provides(in.readUTF(), readStrings(in));
+
+        return builder.build();
+    }
+
+    private static void writeEnums(DataOutputStream out, Set<? extends Enum<?>> values) throws IOException {
+        int mask = 0;
+        for (var value : values)
+            mask |= 1 << value.ordinal();
+        out.writeInt(mask);
+    }
+
+    private static <E extends Enum<E>> Set<E> readEnums(DataInputStream in, E[] values) throws IOException {
+        int mask = in.readInt();
+        var ret = new HashSet<E>();
+        for (var value : values) {
+            if ((mask & (1 << value.ordinal())) != 0)
+                ret.add(value);
+        }
+        return ret;
+    }
+
+    private static void writeStrings(DataOutputStream out, Iterable<String> values) throws IOException {
+        var list = new ArrayList<String>();
+        values.forEach(list::add);
+        out.writeInt(list.size());
+        for (var value : list)
+            out.writeUTF(value);
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        var ret = new ArrayList<String>(size);
+        for (int x = 0; x < size; x++)
+            ret.add(in.readUTF());
+        return List.copyOf(ret);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        var ret = new byte[in.readInt()];
+        in.readFully(ret);
+        return ret;
+    }
+
+    private static byte[] hash(InputStream input) throws IOException {
+        try (var in = input) {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1)
+                digest.update(buf, 0, len);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void log(String line) {
+        if (DEBUG)
+            System.out.println("[SJH] " + line);
+    }
+}
@@ -9,28 +9,141 @@ import java.security.CodeSigner;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
 class ManifestVerifier {
     private static final boolean DEBUG = Boolean.parseBoolean(System.getProperty("securejarhandler.debugVerifier", "false"));
 
     private static final Base64.Decoder BASE64D = Base64.getDecoder();
-    private final Map<String, MessageDigest> HASHERS = new HashMap<>();
-    private MessageDigest getHasher(String name) {
-        return HASHERS.computeIfAbsent(name.toLowerCase(Locale.ENGLISH), k -> {
-            try {
-                return MessageDigest.getInstance(k);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+    // MessageDigests aren't thread safe, so give every thread its own instead of locking around them.
+    private static final ThreadLocal<MessageDigest[]> HASHERS = ThreadLocal.withInitial(() -> new MessageDigest[Algorithm.VALUES.length]);
+    // Anything we don't know about by name, rare enough that a map lookup doesn't matter
+    private static final ThreadLocal<Map<String, MessageDigest>> OTHER_HASHERS = ThreadLocal.withInitial(HashMap::new);
+    private static MessageDigest getHasher(Expected expected) {
+        var algo = expected.algorithm();
+        if (algo == Algorithm.UNKNOWN)
+            return OTHER_HASHERS.get().computeIfAbsent(expected.name(), ManifestVerifier::newHasher);
+
+        var hashers = HASHERS.get();
+        var ret = hashers[algo.ordinal()];
+        if (ret == null) {
+            ret = newHasher(algo.name);
+            hashers[algo.ordinal()] = ret;
+        }
+        return ret;
+    }
+
+    private static MessageDigest newHasher(Expected expected) {
+        var algo = expected.algorithm();
+        return newHasher(algo == Algorithm.UNKNOWN ? expected.name() : algo.name);
+    }
+
+    private static MessageDigest newHasher(String name) {
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The digest algorithms that can show up in a manifest as {@code <Algorithm>-Digest}.
+     * Anything else is mapped to UNKNOWN, and is looked up by its name from the manifest instead.
+     */
+    private enum Algorithm {
+        MD5("MD5"),
+        SHA1("SHA-1", "SHA", "SHA1"),
+        SHA224("SHA-224"),
+        SHA256("SHA-256"),
+        SHA384("SHA-384"),
+        SHA512("SHA-512"),
+        SHA512_224("SHA-512/224"),
+        SHA512_256("SHA-512/256"),
+        SHA3_224("SHA3-224"),
+        SHA3_256("SHA3-256"),
+        SHA3_384("SHA3-384"),
+        SHA3_512("SHA3-512"),
+        UNKNOWN("");
+
+        private static final Algorithm[] VALUES = values();
+        private static final Map<String, Algorithm> LOOKUP = new HashMap<>();
+        static {
+            for (var value : VALUES) {
+                LOOKUP.put(value.name.toLowerCase(Locale.ENGLISH), value);
+                for (var alias : value.aliases)
+                    LOOKUP.put(alias.toLowerCase(Locale.ENGLISH), value);
             }
-        });
+        }
+
+        private final String name;
+        private final String[] aliases;
+
+        Algorithm(String name, String... aliases) {
+            this.name = name;
+            this.aliases = aliases;
+        }
+
+        static Algorithm of(String name) {
+            return LOOKUP.getOrDefault(name.toLowerCase(Locale.ENGLISH), UNKNOWN);
+        }
+    }
+
+    /** A single expected hash. If the manifest had invalid base64 the value is null, and will never match. */
+    private record Expected(Algorithm algorithm, String name, byte[] value) {}
+
+    private static final Expected[] NO_HASHES = new Expected[0];
+
+    private final Manifest manifest;
+    // Built the first time we verify something, as most jars are never verified. Racing threads build identical tables.
+    private volatile Map<String, Expected[]> table;
+
+    ManifestVerifier(Manifest manifest) {
+        this.manifest = manifest;
     }
 
     private void log(String line) {
         System.out.println(line);
     }
 
+    private Map<String, Expected[]> getTable() {
+        var ret = this.table;
+        if (ret == null) {
+            var entries = this.manifest.getEntries();
+            var map = new HashMap<String, Expected[]>(entries.size() * 2);
+            for (var entry : entries.entrySet()) {
+                var expected = new ArrayList<Expected>(1);
+                entry.getValue().forEach((k, v) -> {
+                    var key = k.toString();
+                    if (key.length() > 7 && key.regionMatches(true, key.length() - 7, "-digest", 0, 7)) {
+                        byte[] value;
+                        try {
+                            value = BASE64D.decode((String)v);
+                        } catch (IllegalArgumentException e) {
+                            value = null;
+                        }
+                        var name = key.substring(0, key.length() - 7);
+                        expected.add(new Expected(Algorithm.of(name), name, value));
+                    }
+                });
+                map.put(entry.getKey(), expected.isEmpty() ? NO_HASHES : expected.toArray(Expected[]::new));
+            }
+            ret = this.table = map;
+        }
+        return ret;
+    }
+
+    /**
+     * The names of every entry that has hashes in the manifest.
+     */
+    List<String> entries() {
+        var ret = new ArrayList<String>();
+        for (var entry : getTable().entrySet()) {
+            if (entry.getValue().length != 0)
+                ret.add(entry.getKey());
+        }
+        return ret;
+    }
+
     /**
      * This is Dumb API, but it's a package private class so la-de-da!
      * return:
@@ -38,52 +151,90 @@ class ManifestVerifier {
      *   Optional.empty() - No signatures to verify, missing *-Digest entry in manifest, or nobody signed that particular entry
      *   Optional.isPresent() - code signers!
      */
-    Optional<CodeSigner[]> verify(final Manifest manifest, final Map<String, CodeSigner[]> pending,
-                                  final Map<String, CodeSigner[]> verified, final String name, final byte[] data) {
+    Optional<CodeSigner[]> verify(final Map<String, CodeSigner[]> pending, final Map<String, CodeSigner[]> verified, final String name, final byte[] data) {
+        var digester = digester(name, true);
+        if (digester == null)
+            return Optional.empty();
+        digester.update(data, 0, data.length);
+        return digester.finish() ? signers(pending, verified, name) : null;
+    }
+
+    /**
+     * Moves the signers for an entry whose hashes have been checked from pending to verified.
+     */
+    Optional<CodeSigner[]> signers(final Map<String, CodeSigner[]> pending, final Map<String, CodeSigner[]> verified, final String name) {
+        // Add before removing, so that anyone checking if we have signers never sees both empty
+        var signers = pending.get(name);
+        if (signers != null) {
+            verified.put(name, signers);
+            pending.remove(name);
+        }
+        return Optional.ofNullable(signers);
+    }
+
+    /**
+     * Starts verifying an entry whose data will be supplied in pieces, so that it can be hashed while it's being read.
+     * Returns null if there is nothing to verify, which is the same as verify returning Optional.empty()
+     *
+     * @param shared If true, this thread's digests are used, so the digester must be finished before anything else is verified on this thread.
+     */
+    Digester digester(final String name, boolean shared) {
         if (DEBUG)
             log("[SJH] Verifying: " + name);
-        Attributes attr = manifest.getAttributes(name);
-        if (attr == null) {
+        var expected = getTable().get(name);
+        if (expected == null) {
             if (DEBUG)
                 log("[SJH]   No Manifest Entry");
-            return Optional.empty();
+            return null;
         }
 
-        record Expected(MessageDigest hash, byte[] value){};
-        var expected = new ArrayList<Expected>();
-        attr.forEach((k,v) -> {
-            var key = k.toString();
-            if (key.toLowerCase(Locale.ENGLISH).endsWith("-digest")) {
-                var algo = key.substring(0, key.length() - 7);
-                var hash = BASE64D.decode((String)v);
-                expected.add(new Expected(getHasher(algo), hash));
-            }
-        });
-        if (expected.isEmpty()) {
+        if (expected.length == 0) {
             if (DEBUG)
                 log("[SJH]   No Manifest Hashes");
-            return Optional.empty();
+            return null;
+        }
+
+        var hashes = new MessageDigest[expected.length];
+        for (int x = 0; x < expected.length; x++) {
+            hashes[x] = shared ? getHasher(expected[x]) : newHasher(expected[x]);
+            hashes[x].reset();
+        }
+        return new Digester(name, expected, hashes);
+    }
+
+    final class Digester {
+        private final String name;
+        private final Expected[] expected;
+        private final MessageDigest[] hashes;
+
+        private Digester(String name, Expected[] expected, MessageDigest[] hashes) {
+            this.name = name;
+            this.expected = expected;
+            this.hashes = hashes;
+        }
+
+        void update(byte[] data, int offset, int length) {
+            for (var hash : this.hashes)
+                hash.update(data, offset, length);
         }
 
-        for (var exp : expected) {
-            synchronized (exp.hash()) {
-                exp.hash().reset();
-                byte[] actual = exp.hash().digest(data);
+        /** Returns true if every hash matched what the manifest expected. */
+        boolean finish() {
+            for (int x = 0; x < this.expected.length; x++) {
+                var exp = this.expected[x];
+                var hash = this.hashes[x];
+                byte[] actual = hash.digest();
                 if (DEBUG) {
-                    log("[SJH]   " + exp.hash().getAlgorithm() + " Expected: " + SecureJarVerifier.toHexString(exp.value()));
-                    log("[SJH]   " + exp.hash().getAlgorithm() + " Actual:   " + SecureJarVerifier.toHexString(actual));
+                    log("[SJH]   " + this.name + " " + hash.getAlgorithm() + " Expected: " + (exp.value() == null ? "invalid" : SecureJarVerifier.toHexString(exp.value())));
+                    log("[SJH]   " + this.name + " " + hash.getAlgorithm() + " Actual:   " + SecureJarVerifier.toHexString(actual));
                 }
                 if (!Arrays.equals(exp.value(), actual)) {
                     if (DEBUG)
                         log("[SJH]   Failed: Invalid hashes");
-                    return null;
+                    return false;
                 }
             }
+            return true;
         }
-
-        var signers = pending.remove(name);
-        if (signers != null)
-            verified.put(name, signers);
-        return Optional.ofNullable(signers);
     }
 }
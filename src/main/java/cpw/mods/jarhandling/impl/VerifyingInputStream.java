@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.jarhandling.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Hashes an entry as it is read, so that verifying it afterwards doesn't need a second pass over the data.
+ * <p>
+ * This only happens when the whole entry is read with {@link #readAllBytes()}, as that is the only time we
+ * know exactly which array the caller will try to verify. Anything else, such as skipping or a partial read,
+ * just means the entry will be hashed normally when it is verified.
+ * Only handed out by {@link Jar#openVerifying}, and the result is only trusted by {@link Jar#verifyUntransformed},
+ * as anyone else could change the array before verifying it.
+ */
+class VerifyingInputStream extends FilterInputStream {
+    private final Jar jar;
+    private final String name;
+    private final ManifestVerifier.Digester digester;
+    private boolean dirty = false; // Something has already been read or skipped
+
+    VerifyingInputStream(Jar jar, String name, ManifestVerifier.Digester digester, InputStream in) {
+        super(in);
+        this.jar = jar;
+        this.name = name;
+        this.digester = digester;
+    }
+
+    @Override
+    public int read() throws IOException {
+        this.dirty = true;
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        this.dirty = true;
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public byte[] readAllBytes() throws IOException {
+        if (this.dirty)
+            return super.readAllBytes();
+        this.dirty = true;
+
+        // Hash each chunk as it comes in, while it's still hot
+        var buf = new byte[Math.max(this.in.available(), 8192)];
+        int len = 0;
+        while (true) {
+            if (len == buf.length) {
+                // available() is normally exact, so check for the end before growing
+                int next = this.in.read();
+                if (next == -1)
+                    break;
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                buf[len] = (byte)next;
+                this.digester.update(buf, len++, 1);
+            }
+            int read = this.in.read(buf, len, buf.length - len);
+            if (read == -1)
+                break;
+            this.digester.update(buf, len, read);
+            len += read;
+        }
+
+        var ret = len == buf.length ? buf : Arrays.copyOf(buf, len);
+        this.jar.streamed(this.name, ret, this.digester.finish());
+        return ret;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        this.dirty = true;
+        return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.jarhandling.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file in a single pass, so that we don't have to walk the
+ * file system once for packages, once for multi-release files, once for services, and then stream
+ * the whole thing again looking for the manifest.
+ * <p>
+ * This only understands what we need from a jar, it is not a general purpose zip reader.
+ * Anything we don't understand is thrown as a {@link ZipException} so the caller can fall back to
+ * the slow path.
+ */
+class ZipDirectory {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOC_SIZE = 20;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final String VERSIONS = "META-INF/versions/";
+    private static final String SERVICES = "META-INF/services/";
+
+    /** Location of a single entry's data, enough to read it back without going through a FileSystem. */
+    record Entry(String name, int method, long compressedSize, long size, long offset) {}
+
+    private final Path path;
+    private final List<String> files;
+    private final List<String> services;
+    private final Map<Integer, Map<String, String>> versioned;
+    private final Entry manifest;
+    private final List<Entry> signatures;
+
+    private ZipDirectory(Path path, List<String> files, List<String> services, Map<Integer, Map<String, String>> versioned, Entry manifest, List<Entry> signatures) {
+        this.path = path;
+        this.files = files;
+        this.services = services;
+        this.versioned = versioned;
+        this.manifest = manifest;
+        this.signatures = signatures;
+    }
+
+    static ZipDirectory read(Path path) throws IOException {
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            var cen = readCentralDirectory(ch);
+
+            var files = new LinkedHashSet<String>();
+            var services = new ArrayList<String>();
+            var versioned = new HashMap<Integer, Map<String, String>>();
+            var signatures = new ArrayList<Entry>();
+            Entry manifest = null;
+
+            while (cen.remaining() >= CEN_SIZE) {
+                if (cen.getInt(cen.position()) != CEN_SIG)
+                    throw new ZipException("Invalid central directory header in " + path);
+
+                int pos = cen.position();
+                int method = cen.getShort(pos + 10) & 0xFFFF;
+                long csize = cen.getInt(pos + 20) & ZIP64_MAGIC;
+                long size = cen.getInt(pos + 24) & ZIP64_MAGIC;
+                int nlen = cen.getShort(pos + 28) & 0xFFFF;
+                int elen = cen.getShort(pos + 30) & 0xFFFF;
+                int clen = cen.getShort(pos + 32) & 0xFFFF;
+                long offset = cen.getInt(pos + 42) & ZIP64_MAGIC;
+
+                if (pos + CEN_SIZE + nlen + elen + clen > cen.limit())
+                    throw new ZipException("Truncated central directory in " + path);
+
+                var nameBytes = new byte[nlen];
+                cen.get(pos + CEN_SIZE, nameBytes);
+                var name = new String(nameBytes, StandardCharsets.UTF_8);
+                cen.position(pos + CEN_SIZE + nlen + elen + clen);
+
+                if (name.endsWith("/"))
+                    continue; // Directory
+
+                files.add(name);
+
+                if (name.startsWith("META-INF/")) {
+                    if (csize == ZIP64_MAGIC || size == ZIP64_MAGIC || offset == ZIP64_MAGIC) {
+                        var extra = readZip64(cen, pos + CEN_SIZE + nlen, elen, size, csize, offset);
+                        size = extra[0];
+                        csize = extra[1];
+                        offset = extra[2];
+                    }
+
+                    if (JarFile.MANIFEST_NAME.equalsIgnoreCase(name)) {
+                        if (manifest == null)
+                            manifest = new Entry(name, method, csize, size, offset);
+                    } else if (SecureJarVerifier.isSigningRelated(name)) {
+                        signatures.add(new Entry(name, method, csize, size, offset));
+                    } else if (name.startsWith(SERVICES) && name.indexOf('/', SERVICES.length()) == -1) {
+                        services.add(name);
+                    } else if (name.startsWith(VERSIONS)) {
+                        int idx = name.indexOf('/', VERSIONS.length());
+                        if (idx != -1 && idx != name.length() - 1) {
+                            try {
+                                var version = Integer.parseInt(name.substring(VERSIONS.length(), idx));
+                                versioned.computeIfAbsent(version, k -> new HashMap<>()).put(name.substring(idx + 1), name);
+                            } catch (NumberFormatException e) {
+                                // Not a version directory, so it's just a normal file
+                            }
+                        }
+                    }
+                }
+            }
+
+            return new ZipDirectory(path, List.copyOf(files), List.copyOf(services), versioned, manifest, List.copyOf(signatures));
+        }
+    }
+
+    /** The name of every file entry in the order they appear in the central directory. */
+    List<String> files() {
+        return this.files;
+    }
+
+    /** The names of every file directly inside {@code META-INF/services/} */
+    List<String> services() {
+        return this.services;
+    }
+
+    /** Builds the multi-release overrides the same way the runtime would for the specified version. */
+    Map<String, String> versionedFiles(int runtime) {
+        var ret = new HashMap<String, String>();
+        var versions = new HashMap<String, Integer>();
+        for (var entry : this.versioned.entrySet()) {
+            int ver = entry.getKey();
+            if (ver > runtime)
+                continue;
+            for (var file : entry.getValue().entrySet()) {
+                if (versions.getOrDefault(file.getKey(), 0) < ver) {
+                    versions.put(file.getKey(), ver);
+                    ret.put(file.getKey(), file.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    Entry manifest() {
+        return this.manifest;
+    }
+
+    List<Entry> signatures() {
+        return this.signatures;
+    }
+
+    boolean isSigned() {
+        return !this.signatures.isEmpty();
+    }
+
+    InputStream open(Entry entry) throws IOException {
+        if (entry.size() > Integer.MAX_VALUE || entry.compressedSize() > Integer.MAX_VALUE)
+            throw new ZipException("Entry too large: " + entry.name());
+
+        try (var ch = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            var loc = readFully(ch, entry.offset(), LOC_SIZE);
+            if (loc.getInt(0) != LOC_SIG)
+                throw new ZipException("Invalid local header for " + entry.name());
+            int nlen = loc.getShort(26) & 0xFFFF;
+            int elen = loc.getShort(28) & 0xFFFF;
+
+            var data = readFully(ch, entry.offset() + LOC_SIZE + nlen + elen, (int)entry.compressedSize());
+            var compressed = new byte[data.remaining()];
+            data.get(compressed);
+
+            switch (entry.method()) {
+                case STORED:
+                    return new ByteArrayInputStream(compressed);
+                case DEFLATED: {
+                    var inflater = new Inflater(true);
+                    try {
+                        inflater.setInput(compressed);
+                        var ret = new byte[(int)entry.size()];
+                        int len = 0;
+                        while (len < ret.length && !inflater.finished()) {
+                            int read = inflater.inflate(ret, len, ret.length - len);
+                            if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                                throw new ZipException("Truncated data for " + entry.name());
+                            len += read;
+                        }
+                        return new ByteArrayInputStream(ret, 0, len);
+                    } catch (DataFormatException e) {
+                        throw new ZipException("Invalid data for " + entry.name() + ": " + e.getMessage());
+                    } finally {
+                        inflater.end();
+                    }
+                }
+                default:
+                    throw new ZipException("Unsupported compression method " + entry.method() + " for " + entry.name());
+            }
+        }
+    }
+
+    private static ByteBuffer readCentralDirectory(FileChannel ch) throws IOException {
+        long length = ch.size();
+        if (length < END_SIZE)
+            throw new ZipException("Not a zip file");
+
+        // The end header is followed by a comment of up to 64k, so search backwards for it.
+        int tail = (int)Math.min(length, END_SIZE + 0xFFFF);
+        var buf = readFully(ch, length - tail, tail);
+        int end = -1;
+        for (int x = tail - END_SIZE; x >= 0; x--) {
+            if (buf.getInt(x) == END_SIG && x + END_SIZE + (buf.getShort(x + 20) & 0xFFFF) == tail) {
+                end = x;
+                break;
+            }
+        }
+        if (end == -1)
+            throw new ZipException("Could not find end of central directory");
+
+        long cenSize = buf.getInt(end + 12) & ZIP64_MAGIC;
+        long cenOffset = buf.getInt(end + 16) & ZIP64_MAGIC;
+
+        if (cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+            long endPos = length - tail + end;
+            if (endPos < ZIP64_LOC_SIZE)
+                throw new ZipException("Missing zip64 end locator");
+            var loc = readFully(ch, endPos - ZIP64_LOC_SIZE, ZIP64_LOC_SIZE);
+            if (loc.getInt(0) != ZIP64_LOC_SIG)
+                throw new ZipException("Missing zip64 end locator");
+            var end64 = readFully(ch, loc.getLong(8), 56);
+            if (end64.getInt(0) != ZIP64_END_SIG)
+                throw new ZipException("Invalid zip64 end header");
+            cenSize = end64.getLong(40);
+            cenOffset = end64.getLong(48);
+        }
+
+        if (cenSize > Integer.MAX_VALUE || cenOffset + cenSize > length)
+            throw new ZipException("Invalid central directory");
+
+        return readFully(ch, cenOffset, (int)cenSize);
+    }
+
+    private static long[] readZip64(ByteBuffer cen, int start, int length, long size, long csize, long offset) throws ZipException {
+        int pos = start;
+        int limit = start + length;
+        while (pos + 4 <= limit) {
+            int tag = cen.getShort(pos) & 0xFFFF;
+            int sz = cen.getShort(pos + 2) & 0xFFFF;
+            pos += 4;
+            if (pos + sz > limit)
+                break;
+            if (tag == ZIP64_EXTRA) {
+                // Only the fields that overflowed are present, in this order
+                int off = pos;
+                if (size == ZIP64_MAGIC && off + 8 <= pos + sz) {
+                    size = cen.getLong(off);
+                    off += 8;
+                }
+                if (csize == ZIP64_MAGIC && off + 8 <= pos + sz) {
+                    csize = cen.getLong(off);
+                    off += 8;
+                }
+                if (offset == ZIP64_MAGIC && off + 8 <= pos + sz)
+                    offset = cen.getLong(off);
+                return new long[] { size, csize, offset };
+            }
+            pos += sz;
+        }
+        throw new ZipException("Missing zip64 extra data");
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        var buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0)
+                throw new EOFException();
+        }
+        return buf.flip();
+    }
+
+    @Override
+    public String toString() {
+        return "ZipDirectory[" + this.path + ", " + this.files.size() + " files" + (isSigned() ? ", signed" : "") + "]";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.union;
+
+import java.util.Collection;
+
+/**
+ * A simple fixed size bloom filter over strings. If {@link #mightContain(String)} returns false, the value was
+ * definitely never added. If it returns true, it probably was.
+ * Sized for roughly a 1% false positive rate.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final int size;
+
+    BloomFilter(Collection<String> values) {
+        // Round up to a whole number of longs, with at least one so empty sets still work
+        long wanted = Math.max(64L, (long)values.size() * BITS_PER_ENTRY);
+        this.bits = new long[(int)Math.min(Integer.MAX_VALUE / 64, (wanted + 63) / 64)];
+        this.size = this.bits.length * 64;
+        for (var value : values)
+            add(value);
+    }
+
+    private void add(String value) {
+        int h1 = value.hashCode();
+        int h2 = secondHash(value);
+        for (int x = 0; x < HASHES; x++) {
+            int bit = Math.floorMod(h1 + x * h2, this.size);
+            this.bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String value) {
+        int h1 = value.hashCode();
+        int h2 = secondHash(value);
+        for (int x = 0; x < HASHES; x++) {
+            int bit = Math.floorMod(h1 + x * h2, this.size);
+            if ((this.bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // FNV-1a, so that strings with the same hashCode don't always collide
+    private static int secondHash(String value) {
+        int hash = 0x811C9DC5;
+        for (int x = 0; x < value.length(); x++) {
+            hash ^= value.charAt(x);
+            hash *= 0x01000193;
+        }
+        return hash | 1; // Odd, so every probe lands somewhere different
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.union;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+/**
+ * A bounded cache that evicts the oldest entries first once full, so a working set bigger than the cache
+ * only loses a few entries at a time instead of everything at once.
+ * Used for the filter's past answers for each base, and the provider's resolved URIs.
+ */
+final class FifoCache<K, V> {
+    private final int capacity;
+    private final Map<K, V> values = new ConcurrentHashMap<>();
+    private final Queue<K> order = new ConcurrentLinkedQueue<>();
+
+    FifoCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    V get(K key) {
+        return this.values.get(key);
+    }
+
+    void put(K key, V value) {
+        if (this.values.putIfAbsent(key, value) != null)
+            return;
+
+        this.order.add(key);
+        while (this.values.size() > this.capacity) {
+            var oldest = this.order.poll();
+            if (oldest == null)
+                break;
+            this.values.remove(oldest);
+        }
+    }
+
+    // The key stays in the order queue, worst case that evicts its next value a little early
+    void remove(K key) {
+        this.values.remove(key);
+    }
+
+    void removeIf(Predicate<V> filter) {
+        this.values.values().removeIf(filter);
+    }
+
+    int size() {
+        return this.values.size();
+    }
+
+    void clear() {
+        this.values.clear();
+        this.order.clear();
+    }
+}
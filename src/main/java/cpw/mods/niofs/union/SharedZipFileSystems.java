@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.union;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+import cpw.mods.niofs.zip.MappedZipFileSystemProvider;
+import cpw.mods.util.ZipUtils;
+
+/**
+ * The jar file systems behind every {@link UnionFileSystem}, so that a jar used as a base by several of them is only
+ * opened once. Each one is reference counted and closed when the last union file system using it is closed.
+ * <p>
+ * Jars are keyed by their real path and modified time, so a jar that is replaced on disk gets a new file system
+ * instead of sharing a stale one.
+ */
+final class SharedZipFileSystems {
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private record Key(Path path, FileTime modified, boolean mapped) {}
+
+    /** A single open jar, the channel is null if the file system doesn't have one we can get at. */
+    static final class Shared {
+        private final Key key;
+        final FileSystem fs;
+        final SeekableByteChannel ch;
+        private final long directorySize;
+        private int references = 1;
+        private volatile BloomFilter bloom;
+
+        private Shared(Key key, FileSystem fs, SeekableByteChannel ch, long directorySize) {
+            this.key = key;
+            this.fs = fs;
+            this.ch = ch;
+            this.directorySize = directorySize;
+        }
+
+        /** Every name in the jar, gathered the first time anyone asks. The jar can't change, so everyone using it can share this. */
+        BloomFilter bloom() {
+            var ret = this.bloom;
+            if (ret != null)
+                return ret;
+
+            synchronized (this) {
+                if (this.bloom == null) {
+                    var names = new ArrayList<String>();
+                    UnionFileSystem.walk(this.fs.getRootDirectories().iterator().next(), null, null, (name, attrs) -> names.add(name));
+                    this.bloom = new BloomFilter(names);
+                }
+                return this.bloom;
+            }
+        }
+    }
+
+    private final Map<Key, Shared> open = new HashMap<>();
+
+    /**
+     * Gets the file system for this jar, opening it if nobody else has it open. Every call must be matched by a call
+     * to {@link #release(Shared)}.
+     */
+    Shared acquire(final Path path, final boolean mapped) {
+        Key key;
+        try {
+            var real = path.toRealPath();
+            key = new Key(real, Files.getLastModifiedTime(real), mapped && real.getFileSystem() == FileSystems.getDefault());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        synchronized (this.open) {
+            var ret = this.open.get(key);
+            if (ret != null) {
+                ret.references++;
+                return ret;
+            }
+            ret = open(key);
+            this.open.put(key, ret);
+            return ret;
+        }
+    }
+
+    void release(final Shared shared) {
+        synchronized (this.open) {
+            if (--shared.references > 0)
+                return;
+            this.open.remove(shared.key, shared);
+        }
+        try {
+            shared.fs.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    UnionFileSystemProvider.SharedStats stats() {
+        synchronized (this.open) {
+            int references = 0;
+            long saved = 0;
+            for (var shared : this.open.values()) {
+                references += shared.references;
+                saved += (shared.references - 1) * shared.directorySize;
+            }
+            return new UnionFileSystemProvider.SharedStats(this.open.size(), references, saved);
+        }
+    }
+
+    private static Shared open(final Key key) {
+        var path = key.path();
+        var size = directorySize(path);
+        if (key.mapped()) {
+            try {
+                // Reads never touch a channel, so there is nothing for interrupts to break
+                return new Shared(key, MappedZipFileSystemProvider.get().newFileSystem(path), null, size);
+            } catch (ZipException e) {
+                // Something it doesn't support, let the JDK deal with it
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        try {
+            var zfs = FileSystems.newFileSystem(path);
+            SeekableByteChannel ch = ZipUtils.getByteChannel(zfs);
+            ZipUtils.setUninterruptible(ch);
+            return new Shared(key, zfs, ch, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * The size of the jar's central directory, which is roughly what each zip file system keeps in memory.
+     * Only used for stats, so anything odd is just zero.
+     */
+    private static long directorySize(final Path path) {
+        if (path.getFileSystem() != FileSystems.getDefault())
+            return 0;
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            int len = (int)Math.min(fileSize, END_SIZE + MAX_COMMENT);
+            var buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+            ch.read(buf, fileSize - len);
+            for (int pos = len - END_SIZE; pos >= 0; pos--) {
+                if (buf.getInt(pos) != END_SIG)
+                    continue;
+                long size = buf.getInt(pos + 12) & 0xFFFFFFFFL;
+                if (size != 0xFFFFFFFFL || pos < 20 || buf.getInt(pos - 20) != ZIP64_LOC_SIG)
+                    return size;
+                // Zip64, the real size is in the zip64 end record
+                var end64 = ByteBuffer.allocate(48).order(ByteOrder.LITTLE_ENDIAN);
+                ch.read(end64, buf.getLong(pos - 20 + 8));
+                return end64.getLong(40);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Stats only
+        }
+        return 0;
+    }
+}
@@ -5,48 +5,64 @@
 
 package cpw.mods.niofs.union;
 
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
-import java.util.Spliterator;
-import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.StreamSupport;
 
+import cpw.mods.niofs.zip.MappedZipFileSystem;
 import cpw.mods.util.ZipUtils;
 
 public class UnionFileSystem extends FileSystem {
     static final String SEP_STRING = "/";
+    static final boolean INDEX_DEFAULT = Boolean.parseBoolean(System.getProperty("securejarhandler.unionIndex", "false"));
+    static final boolean STATIC_DEFAULT = Boolean.parseBoolean(System.getProperty("securejarhandler.unionStatic", "false"));
+    static final boolean MAPPED_DEFAULT = Boolean.parseBoolean(System.getProperty("securejarhandler.mappedZip", "false"));
+    private static final boolean USE_BLOOM = Boolean.parseBoolean(System.getProperty("securejarhandler.unionBloom", "true"));
+    private static final int FILTER_CACHE_SIZE = Integer.getInteger("securejarhandler.unionFilterCache", 4096);
 
     public InputStream buildInputStream(final UnionPath path) {
         try {
-            var bytes = Files.readAllBytes(path);
-            return new ByteArrayInputStream(bytes);
+            return newInputStream(path);
         } catch (IOException ioe)
         {
             throw new UncheckedIOException(ioe);
@@ -84,6 +100,15 @@ public class UnionFileSystem extends FileSystem {
     private final List<Path> basepaths;
     private final BiPredicate<String, String> pathFilter;
     private final Map<Path,EmbeddedFileSystemMetadata> embeddedFileSystems;
+    private final Map<String, IndexEntry> index;
+    private final boolean isStatic;
+    // Every name in each base we know can't change, in the same order as basepaths. Null for bases that can change.
+    private final BloomFilter[] blooms;
+    private final Map<Path, FilterBase> filterBases;
+    // URIs are slow to build and the same resources get asked for over and over, so keep them while anyone still uses them
+    private final Map<String, UriRef> uris = new ConcurrentHashMap<>();
+    private final ReferenceQueue<URI> staleUris = new ReferenceQueue<>();
+    private volatile boolean closed = false;
 
     public Path getPrimaryPath() {
         return basepaths.get(basepaths.size()-1);
@@ -97,9 +122,47 @@ public class UnionFileSystem extends FileSystem {
         return this.key;
     }
 
-    private record EmbeddedFileSystemMetadata(Path path, FileSystem fs, SeekableByteChannel fsCh) {}
+    private record EmbeddedFileSystemMetadata(Path path, FileSystem fs, SeekableByteChannel fsCh, SharedZipFileSystems.Shared shared) {}
+    private record IndexEntry(Path base, Path real, BasicFileAttributes attributes) {}
+    /**
+     * The base path as the filter sees it, and the filter's past answers for paths in that base.
+     * The cache is null for bases that can change, as whether a path is a directory is part of what the filter sees.
+     */
+    private record FilterBase(String name, FifoCache<Path, Boolean> cache) {}
+
+    private static final class UriRef extends WeakReference<URI> {
+        private final String path;
+
+        private UriRef(String path, URI uri, ReferenceQueue<URI> queue) {
+            super(uri, queue);
+            this.path = path;
+        }
+    }
 
     public UnionFileSystem(final UnionFileSystemProvider provider, final BiPredicate<String, String> pathFilter, final String key, final Path... basepaths) {
+        this(provider, pathFilter, key, INDEX_DEFAULT, basepaths);
+    }
+
+    public UnionFileSystem(final UnionFileSystemProvider provider, final BiPredicate<String, String> pathFilter, final String key, final boolean index, final Path... basepaths) {
+        this(provider, pathFilter, key, index, STATIC_DEFAULT, basepaths);
+    }
+
+    /**
+     * @param index See {@link #isIndexed()}
+     * @param staticDirectories If true, directory bases are assumed to never change after this file system is created,
+     *                          so their contents can be captured up front the same way jar bases are.
+     */
+    public UnionFileSystem(final UnionFileSystemProvider provider, final BiPredicate<String, String> pathFilter, final String key, final boolean index, final boolean staticDirectories, final Path... basepaths) {
+        this(provider, pathFilter, key, index, staticDirectories, MAPPED_DEFAULT, basepaths);
+    }
+
+    /**
+     * @param index See {@link #isIndexed()}
+     * @param staticDirectories If true, directory bases are assumed to never change after this file system is created,
+     *                          so their contents can be captured up front the same way jar bases are.
+     * @param mapped If true, jar bases are opened with {@link MappedZipFileSystem} instead of the JDK's zip file system.
+     */
+    public UnionFileSystem(final UnionFileSystemProvider provider, final BiPredicate<String, String> pathFilter, final String key, final boolean index, final boolean staticDirectories, final boolean mapped, final Path... basepaths) {
         this.pathFilter = pathFilter;
         this.provider = provider;
         this.key = key;
@@ -107,38 +170,191 @@ public class UnionFileSystem extends FileSystem {
                 .mapToObj(i->basepaths[basepaths.length - i - 1])
                 .filter(Files::exists)
                 .toList(); // we flip the list so later elements are first in search order.
-        this.embeddedFileSystems = this.basepaths.stream().filter(path -> !Files.isDirectory(path))
-                .map(UnionFileSystem::openFileSystem)
-                .flatMap(Optional::stream)
-                .collect(Collectors.toMap(EmbeddedFileSystemMetadata::path, Function.identity()));
+        var embedded = new HashMap<Path, EmbeddedFileSystemMetadata>();
+        this.embeddedFileSystems = embedded;
+        try {
+            for (var path : this.basepaths) {
+                if (Files.isDirectory(path))
+                    continue;
+                if (embedded.containsKey(path))
+                    throw new IllegalStateException("Duplicate base " + path);
+                embedded.put(path, openFileSystem(provider, path, mapped));
+            }
+
+            this.filterBases = new HashMap<>();
+            for (var base : this.basepaths) {
+                var cache = FILTER_CACHE_SIZE > 0 && (staticDirectories || embeddedFileSystems.containsKey(base)) ? new FifoCache<Path, Boolean>(FILTER_CACHE_SIZE) : null;
+                this.filterBases.put(base, new FilterBase(normalizeBase(base), cache));
+            }
+            this.index = index ? buildIndex() : null;
+            this.isStatic = this.index != null || staticDirectories || embedded.size() == this.basepaths.size();
+
+            this.blooms = new BloomFilter[this.basepaths.size()];
+            if (USE_BLOOM && this.index == null) {
+                for (int x = 0; x < this.blooms.length; x++) {
+                    var base = this.basepaths.get(x);
+                    var efsm = embeddedFileSystems.get(base);
+                    if (efsm != null)
+                        this.blooms[x] = efsm.shared().bloom(); // Only walked once, no matter how many of us use the jar
+                    else if (staticDirectories)
+                        this.blooms[x] = buildBloom(base);
+                }
+            }
+        } catch (Throwable t) {
+            // Nobody can close us if we fail, so let go of the jars we already have
+            for (var efs : embedded.values()) {
+                try {
+                    provider.getSharedZips().release(efs.shared());
+                } catch (RuntimeException e) {
+                    t.addSuppressed(e);
+                }
+            }
+            throw t;
+        }
+    }
+
+    /**
+     * If true, every path in every base was gathered when this file system was created. The first base that has
+     * a path, and passes the filter, wins just like a normal lookup. But finding it is a single map lookup instead
+     * of probing every base. As a result, changes to the underlying directories after that point will not be seen.
+     */
+    public boolean isIndexed() {
+        return this.index != null;
+    }
+
+    /**
+     * If true, what this file system contains can't change while it's open. Either every base is a jar,
+     * directory bases were declared static, or everything was indexed up front.
+     */
+    public boolean isStatic() {
+        return this.isStatic;
+    }
+
+    private Map<String, IndexEntry> buildIndex() {
+        var ret = new HashMap<String, IndexEntry>();
+        for (var base : this.basepaths) {
+            var efsm = embeddedFileSystems.get(base);
+            walk(base, (name, attrs) -> {
+                if (ret.containsKey(name))
+                    return;
+                var real = efsm != null ? efsm.fs().getPath(name) : base.resolve(name);
+                if (testFilter(real, base, attrs.isDirectory()))
+                    ret.put(name, new IndexEntry(base, real, attrs));
+            });
+        }
+        return ret;
     }
 
-    private static Optional<EmbeddedFileSystemMetadata> openFileSystem(final Path path) {
+    private BloomFilter buildBloom(final Path base) {
+        // The filter isn't applied here, it only ever makes the set smaller, so a name it rejects is still a miss.
+        var names = new ArrayList<String>();
+        walk(base, (name, attrs) -> names.add(name));
+        return new BloomFilter(names);
+    }
+
+    /**
+     * Visits every path in a base, giving the name it would have relative to our root.
+     */
+    private void walk(final Path base, final BiConsumer<String, BasicFileAttributes> consumer) {
+        var efsm = embeddedFileSystems.get(base);
+        var start = efsm != null ? efsm.fs().getRootDirectories().iterator().next() : base;
+        var filter = this.pathFilter instanceof UnionPathFilter f ? f : null;
+        walk(start, filter, this.filterBases.get(base).name(), consumer);
+    }
+
+    /**
+     * Visits every path under start, giving its name relative to start. Directories the filter rejects everything in are skipped.
+     */
+    static void walk(final Path start, final UnionPathFilter filter, final String baseName, final BiConsumer<String, BasicFileAttributes> consumer) {
         try {
-            var zfs = FileSystems.newFileSystem(path);
-            SeekableByteChannel ch = ZipUtils.getByteChannel(zfs);
-            ZipUtils.setUninterruptible(ch);
-            return Optional.of(new EmbeddedFileSystemMetadata(path, zfs, ch));
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    var name = add(dir, attrs);
+                    // Nothing in here could get past the filter, so don't bother looking
+                    if (filter != null && filter.check(name, 0, name.length(), true, baseName) == UnionPathFilter.REJECT_ALL)
+                        return FileVisitResult.SKIP_SUBTREE;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    add(file, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE; // Loops, or things we can't read, wouldn't be found by a normal lookup either
+                }
+
+                private String add(Path path, BasicFileAttributes attrs) {
+                    var name = start.relativize(path).toString().replace('\\', '/');
+                    consumer.accept(name, attrs);
+                    return name;
+                }
+            });
         } catch (IOException e) {
             throw new UncheckedIOException(e);
-        } catch (Throwable t) {
-            throw new IllegalStateException(t);
         }
     }
 
+    /**
+     * Returns true if the base at this position is known to not have the path, so there is no need to look at it.
+     * For jars, and static directories, this means a miss never touches the underlying file system.
+     */
+    private boolean definitelyMissing(final int base, final String name) {
+        var bloom = this.blooms[base];
+        // Anything escaping the root could resolve outside what we walked, so don't trust the filter for it
+        return bloom != null && !name.startsWith("..") && !bloom.mightContain(name);
+    }
+
+    private static EmbeddedFileSystemMetadata openFileSystem(final UnionFileSystemProvider provider, final Path path, final boolean mapped) {
+        var shared = provider.getSharedZips().acquire(path, mapped);
+        return new EmbeddedFileSystemMetadata(path, shared.fs, shared.ch, shared);
+    }
+
     @Override
     public UnionFileSystemProvider provider() {
         return provider;
     }
 
+    /**
+     * Closes every jar this was using, unless another union file system is still using it, and lets go of everything
+     * that was cached. Paths from this file system can still be used as paths, but anything that reads through them
+     * throws {@link ClosedFileSystemException}.
+     */
     @Override
     public void close() {
+        synchronized (this) {
+            if (this.closed)
+                return;
+            this.closed = true;
+        }
         provider().removeFileSystem(this);
+        // Other union file systems may still be using the same jars, they are only really closed once nobody is
+        for (var efs : this.embeddedFileSystems.values())
+            this.provider.getSharedZips().release(efs.shared());
+
+        // Stale paths keep this object alive, so don't let them keep everything we cached too
+        if (this.index != null)
+            this.index.clear();
+        this.uris.clear();
+        Arrays.fill(this.blooms, null);
+        for (var base : this.filterBases.values()) {
+            if (base.cache() != null)
+                base.cache().clear();
+        }
     }
 
     @Override
     public boolean isOpen() {
-        return true;
+        return !this.closed;
+    }
+
+    private void ensureOpen() {
+        if (this.closed)
+            throw new ClosedFileSystemException();
     }
 
     @Override
@@ -181,6 +397,26 @@ public class UnionFileSystem extends FileSystem {
         return new UnionPath(this, first);
     }
 
+    URI toUri(final UnionPath path) {
+        var absolute = path.toAbsolutePath().toString();
+        var ref = this.uris.get(absolute);
+        var ret = ref == null ? null : ref.get();
+        if (ret != null)
+            return ret;
+
+        for (Object stale; (stale = this.staleUris.poll()) != null; )
+            this.uris.remove(((UriRef)stale).path, stale);
+
+        try {
+            ret = new URI(provider().getScheme(), null, getKey() + '!' + absolute, null);
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+        if (!this.closed)
+            this.uris.put(absolute, new UriRef(absolute, ret, this.staleUris));
+        return ret;
+    }
+
     private Path fastPath(final String... parts) {
         return new UnionPath(this, false, parts);
     }
@@ -204,6 +440,8 @@ public class UnionFileSystem extends FileSystem {
         try {
             if (path.getFileSystem() == FileSystems.getDefault() && !path.toFile().exists()) {
                 return Optional.empty();
+            } else if (path.getFileSystem() instanceof MappedZipFileSystem mfs && !mfs.exists(path)) {
+                return Optional.empty();
             } else if (path.getFileSystem().provider().getScheme().equals("jar") && !zipFsExists(this, path)) {
                 return Optional.empty();
             } else {
@@ -216,20 +454,32 @@ public class UnionFileSystem extends FileSystem {
 
     private static boolean zipFsExists(UnionFileSystem ufs, Path path) {
         try {
-            if (Optional.ofNullable(ufs.embeddedFileSystems.get(path.getFileSystem())).filter(efs->!efs.fsCh.isOpen()).isPresent()) throw new IllegalStateException("The zip file has closed!");
+            if (Optional.ofNullable(ufs.embeddedFileSystems.get(path.getFileSystem())).filter(efs->efs.fsCh != null && !efs.fsCh.isOpen()).isPresent()) throw new IllegalStateException("The zip file has closed!");
             return ZipUtils.exists(path);
         } catch (Throwable t) {
             throw new IllegalStateException(t);
         }
     }
     private Optional<Path> findFirstFiltered(final UnionPath path) {
-        for (Path p : this.basepaths) {
+        ensureOpen();
+        if (this.index != null)
+            return Optional.ofNullable(this.index.get(toRelativeString(path))).map(IndexEntry::real);
+
+        var name = toRelativeString(path);
+        for (int x = 0; x < this.basepaths.size(); x++) {
+            if (definitelyMissing(x, name))
+                continue;
+            Path p = this.basepaths.get(x);
             Path realPath = toRealPath(p, path);
             if (testFilter(realPath, p)) {
                 if (realPath.getFileSystem() == FileSystems.getDefault()) {
                     if (realPath.toFile().exists()) {
                         return Optional.of(realPath);
                     }
+                } else if (realPath.getFileSystem() instanceof MappedZipFileSystem mfs) {
+                    if (mfs.exists(realPath)) {
+                        return Optional.of(realPath);
+                    }
                 } else if (realPath.getFileSystem().provider().getScheme().equals("jar")) {
                     if (zipFsExists(this, realPath)) {
                         return Optional.of(realPath);
@@ -244,13 +494,25 @@ public class UnionFileSystem extends FileSystem {
 
     @SuppressWarnings("unchecked")
     public <A extends BasicFileAttributes> A readAttributes(final UnionPath path, final Class<A> type, final LinkOption... options) throws IOException {
+        ensureOpen();
         if (type == BasicFileAttributes.class) {
+            if (this.index != null) {
+                var entry = this.index.get(toRelativeString(path));
+                if (entry == null)
+                    throw new NoSuchFileException(path.toString());
+                return (A) entry.attributes();
+            }
+
             // We need to run the test on the actual path,
-            for (Path base : this.basepaths) {
+            var name = toRelativeString(path);
+            for (int x = 0; x < this.basepaths.size(); x++) {
+                if (definitelyMissing(x, name))
+                    continue;
+                Path base = this.basepaths.get(x);
                 // We need to know the full path for the filter
                 Path realPath = toRealPath(base, path);
                 Optional<BasicFileAttributes> fileAttributes = this.getFileAttributes(realPath);
-                if (fileAttributes.isPresent() && testFilter(realPath, base)) {
+                if (fileAttributes.isPresent() && testFilter(realPath, base, fileAttributes.get().isDirectory())) {
                     return (A) fileAttributes.get();
                 }
             }
@@ -261,6 +523,16 @@ public class UnionFileSystem extends FileSystem {
     }
 
     public void checkAccess(final UnionPath p, final AccessMode... modes) throws IOException {
+        ensureOpen();
+        if (this.index != null) {
+            var entry = this.index.get(toRelativeString(p));
+            if (entry == null)
+                throw new NoSuchFileException(p.toString());
+            if (modes.length != 0)
+                entry.real().getFileSystem().provider().checkAccess(entry.real(), modes);
+            return;
+        }
+
         try {
             findFirstFiltered(p).ifPresentOrElse(path-> {
                 try {
@@ -282,9 +554,13 @@ public class UnionFileSystem extends FileSystem {
         }
     }
 
-    private Path toRealPath(final Path basePath, final UnionPath path) {
+    private String toRelativeString(final UnionPath path) {
         var embeddedpath = path.isAbsolute() ? this.root.relativize(path) : path;
-        var resolvepath = embeddedpath.normalize().toString();
+        return embeddedpath.normalize().toString();
+    }
+
+    private Path toRealPath(final Path basePath, final UnionPath path) {
+        var resolvepath = toRelativeString(path);
         var efsm = embeddedFileSystems.get(basePath);
         if (efsm != null) {
             return efsm.fs().getPath(resolvepath);
@@ -293,6 +569,30 @@ public class UnionFileSystem extends FileSystem {
         }
     }
 
+    /**
+     * Opens the file directly from whichever base it's in, so it's streamed instead of being read into memory first.
+     */
+    public InputStream newInputStream(final UnionPath path) throws IOException {
+        var real = findFirstFiltered(path);
+        if (real.isEmpty())
+            throw new NoSuchFileException(path.toString());
+        return Files.newInputStream(real.get());
+    }
+
+    /**
+     * Reads the whole file into a buffer of exactly the right size. Files in mapped jars are a read only view of
+     * the mapping instead, see {@link MappedZipFileSystem#read(Path)}.
+     */
+    public ByteBuffer read(final UnionPath path) throws IOException {
+        var real = findFirstFiltered(path);
+        if (real.isEmpty())
+            throw new NoSuchFileException(path.toString());
+        if (real.get().getFileSystem() instanceof MappedZipFileSystem mfs)
+            return mfs.read(real.get());
+        // readAllBytes sizes its array from the file size up front, unlike InputStream.readAllBytes
+        return ByteBuffer.wrap(Files.readAllBytes(real.get()));
+    }
+
     public SeekableByteChannel newReadByteChannel(final UnionPath path) throws IOException {
         try {
             return findFirstFiltered(path)
@@ -312,37 +612,162 @@ public class UnionFileSystem extends FileSystem {
     }
 
     public DirectoryStream<Path> newDirStream(final UnionPath path, final DirectoryStream.Filter<? super Path> filter) throws IOException {
-        final var allpaths = new LinkedHashSet<Path>();
-        for (final var bp : basepaths) {
+        ensureOpen();
+        final var bases = new ArrayList<Path>();
+        final var dirs = new ArrayList<Path>();
+        final var name = toRelativeString(path);
+        for (int x = 0; x < basepaths.size(); x++) {
+            if (definitelyMissing(x, name))
+                continue;
+            final var bp = basepaths.get(x);
             final var dir = toRealPath(bp, path);
             if (dir.getFileSystem() == FileSystems.getDefault() && !dir.toFile().exists()) {
                 continue;
+            } else if (dir.getFileSystem() instanceof MappedZipFileSystem mfs && !mfs.exists(dir)) {
+                continue;
             } else if (dir.getFileSystem().provider().getScheme().equals("jar") && !zipFsExists(this, dir)) {
                 continue;
             } else if (Files.notExists(dir)) {
                 continue;
             }
-            final var isSimple = embeddedFileSystems.containsKey(bp);
-            try (final var ds = Files.newDirectoryStream(dir, filter)) {
-                StreamSupport.stream(ds.spliterator(), false)
-                        .filter(p->testFilter(p, bp))
-                        .map(other -> StreamSupport.stream(Spliterators.spliteratorUnknownSize((isSimple ? other : bp.relativize(other)).iterator(), Spliterator.ORDERED), false)
-                                .map(Path::getFileName).map(Path::toString).toArray(String[]::new))
-                        .map(this::fastPath)
-                        .forEachOrdered(allpaths::add);
-            }
+            bases.add(bp);
+            dirs.add(dir);
+        }
+        return new UnionDirectoryStream(bases, dirs, filter);
+    }
+
+    /**
+     * Lists each base in turn, only opening the next base's directory once the previous one is used up.
+     * Only names from bases before the last need to be remembered to remove duplicates, so a directory
+     * that is only in one base, the normal case, is never held in memory.
+     */
+    private final class UnionDirectoryStream implements DirectoryStream<Path> {
+        private final List<Path> bases;
+        private final List<Path> dirs;
+        private final DirectoryStream.Filter<? super Path> filter;
+        private final Set<Path> seen;
+        private int base = -1;
+        private DirectoryStream<Path> current;
+        private Iterator<Path> currentItr;
+        private boolean iterated = false;
+        private volatile boolean closed = false;
+
+        private UnionDirectoryStream(final List<Path> bases, final List<Path> dirs, final DirectoryStream.Filter<? super Path> filter) throws IOException {
+            this.bases = bases;
+            this.dirs = dirs;
+            this.filter = filter;
+            this.seen = bases.size() > 1 ? new HashSet<>() : null;
+            // Open the first one now, so that errors are thrown from newDirectoryStream like they would be for anything else
+            if (!bases.isEmpty())
+                openNext();
         }
-        return new DirectoryStream<>() {
-            @Override
-            public Iterator<Path> iterator() {
-                return allpaths.iterator();
+
+        private void openNext() throws IOException {
+            if (this.current != null)
+                this.current.close();
+            this.current = null;
+            this.currentItr = null;
+            if (++this.base < this.bases.size()) {
+                this.current = Files.newDirectoryStream(this.dirs.get(this.base), this.filter);
+                this.currentItr = this.current.iterator();
             }
+        }
+
+        private Path nextPath() {
+            while (!this.closed && this.currentItr != null) {
+                if (!this.currentItr.hasNext()) {
+                    try {
+                        openNext();
+                    } catch (IOException e) {
+                        throw new DirectoryIteratorException(e);
+                    }
+                    continue;
+                }
 
-            @Override
-            public void close() throws IOException {
-                // noop
+                var bp = this.bases.get(this.base);
+                var other = this.currentItr.next();
+                if (!testFilter(other, bp))
+                    continue;
+
+                var ret = fastPath(toParts(embeddedFileSystems.containsKey(bp) ? other : bp.relativize(other)));
+                if (this.seen != null) {
+                    // Nothing comes after the last base, so there is no need to remember its names
+                    boolean last = this.base == this.bases.size() - 1;
+                    if (last ? this.seen.contains(ret) : !this.seen.add(ret))
+                        continue;
+                }
+                return ret;
             }
-        };
+            return null;
+        }
+
+        @Override
+        public Iterator<Path> iterator() {
+            if (this.closed)
+                throw new IllegalStateException("Directory stream is closed");
+            if (this.iterated)
+                throw new IllegalStateException("Iterator already obtained");
+            this.iterated = true;
+
+            return new Iterator<>() {
+                private Path next;
+
+                @Override
+                public boolean hasNext() {
+                    if (this.next == null)
+                        this.next = nextPath();
+                    return this.next != null;
+                }
+
+                @Override
+                public Path next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    var ret = this.next;
+                    this.next = null;
+                    return ret;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed)
+                return;
+            this.closed = true;
+            this.currentItr = null;
+            if (this.current != null)
+                this.current.close();
+        }
+    }
+
+    private static String[] toParts(final Path path) {
+        var ret = new String[path.getNameCount()];
+        for (int x = 0; x < ret.length; x++)
+            ret[x] = path.getName(x).toString();
+        return ret;
+    }
+
+    private boolean testFilter(final Path path, final Path basePath) {
+        if (pathFilter == null) return true;
+        var cache = cacheFor(basePath);
+        if (cache != null) {
+            var ret = cache.get(path);
+            if (ret != null)
+                return ret;
+        }
+        return runFilter(path, basePath, Files.isDirectory(path), cache);
+    }
+
+    private boolean testFilter(final Path path, final Path basePath, final boolean isDirectory) {
+        if (pathFilter == null) return true;
+        var cache = cacheFor(basePath);
+        if (cache != null) {
+            var ret = cache.get(path);
+            if (ret != null)
+                return ret;
+        }
+        return runFilter(path, basePath, isDirectory, cache);
     }
 
     /*
@@ -351,19 +776,43 @@ public class UnionFileSystem extends FileSystem {
      * Directories end with /
      * Remove leading / for absolute paths
      */
-    private boolean testFilter(final Path path, final Path basePath) {
-        if (pathFilter == null) return true;
-
+    private boolean runFilter(final Path path, final Path basePath, final boolean isDirectory, final FifoCache<Path, Boolean> cache) {
         var sPath = path.toString();
         if (path.getFileSystem() == basePath.getFileSystem()) // Directories, zips will be different file systems.
-            sPath = basePath.relativize(path).toString().replace('\\', '/');
-        if (Files.isDirectory(path))
-            sPath += '/';
-        if (sPath.length() > 1 && sPath.startsWith("/"))
-            sPath = sPath.substring(1);
-        String sBasePath = basePath.toString().replace('\\', '/');
-        if (sBasePath.length() > 1 && sBasePath.startsWith("/"))
-            sBasePath = sBasePath.substring(1);
-        return pathFilter.test(sPath, sBasePath);
+            sPath = basePath.relativize(path).toString();
+        var base = this.filterBases.get(basePath);
+        String sBasePath = base != null ? base.name() : normalizeBase(basePath);
+        boolean ret;
+        if (pathFilter instanceof UnionPathFilter filter) {
+            // Checks the names where they are, instead of building the standard string
+            int start = sPath.startsWith("/") ? 1 : 0;
+            int end = sPath.length();
+            while (end > start && (sPath.charAt(end - 1) == '/' || sPath.charAt(end - 1) == '\\'))
+                end--;
+            ret = filter.check(sPath, start, end, isDirectory, sBasePath) == UnionPathFilter.ACCEPT;
+        } else {
+            sPath = sPath.replace('\\', '/');
+            if (isDirectory)
+                sPath += '/';
+            if (sPath.length() > 1 && sPath.startsWith("/"))
+                sPath = sPath.substring(1);
+            ret = pathFilter.test(sPath, sBasePath);
+        }
+
+        if (cache != null)
+            cache.put(path, ret);
+        return ret;
+    }
+
+    private FifoCache<Path, Boolean> cacheFor(final Path basePath) {
+        var base = this.filterBases.get(basePath);
+        return base == null ? null : base.cache();
+    }
+
+    private static String normalizeBase(final Path basePath) {
+        String ret = basePath.toString().replace('\\', '/');
+        if (ret.length() > 1 && ret.startsWith("/"))
+            ret = ret.substring(1);
+        return ret;
     }
 }
@@ -6,6 +6,7 @@
 package cpw.mods.niofs.union;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -14,13 +15,40 @@ import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiPredicate;
 import java.util.stream.Stream;
 
 public class UnionFileSystemProvider extends FileSystemProvider {
-    private final Map<String, UnionFileSystem> fileSystems = new HashMap<>();
+    private static final int URI_CACHE_SIZE = Integer.getInteger("securejarhandler.unionUriCache", 256);
+
+    private final Map<String, UnionFileSystem> fileSystems = new ConcurrentHashMap<>();
+    // Resource URLs tend to get opened over and over, so remember what the last few resolved to
+    private final FifoCache<String, Path> uriCache = new FifoCache<>(Math.max(URI_CACHE_SIZE, 0));
+    private final SharedZipFileSystems sharedZips = new SharedZipFileSystems();
     private int index = 0;
 
+    /**
+     * How many jar file systems are open behind every union file system from this provider.
+     * @param fileSystems How many jar file systems are actually open
+     * @param references How many union file systems bases are using them, each of these would have been its own file system
+     * @param savedBytes Roughly how much memory sharing saves, the size of each central directory that would have been read again
+     */
+    public record SharedStats(int fileSystems, int references, long savedBytes) {
+        /** How many file handles sharing saves. */
+        public int savedHandles() {
+            return references - fileSystems;
+        }
+    }
+
+    public SharedStats getSharedStats() {
+        return sharedZips.stats();
+    }
+
+    SharedZipFileSystems getSharedZips() {
+        return sharedZips;
+    }
+
     @Override
     public String getScheme() {
         return "union";
@@ -50,8 +78,11 @@ public class UnionFileSystemProvider extends FileSystemProvider {
 
     /**
      * Invoked by FileSystems.newFileSystem, Only returns a value if env contains one of more of:
-     *   "filter": BiPredicate<String, String> - A filter to apply to the opened path
+     *   "filter": BiPredicate<String, String> - A filter to apply to the opened path, see {@link UnionPathFilter} for one that can be precompiled
      *   "additional": List<Path> - Additional paths to join together
+     *   "index": Boolean - Build an index of every file up front, see {@link UnionFileSystem#isIndexed()}
+     *   "static": Boolean - Directories will not change while the file system is open, so misses can be cached like they are for jars
+     *   "mapped": Boolean - Open jars with {@link cpw.mods.niofs.zip.MappedZipFileSystem} instead of the JDK's zip file system
      * If none specified, throws IllegalArgumentException
      * If uri.getScheme() is not "union" throws IllegalArgumentException
      * If you wish to create a UnionFileSystem explicitly, invoke newFileSystem(BiPredicate, Path...)
@@ -62,6 +93,9 @@ public class UnionFileSystemProvider extends FileSystemProvider {
         var additional = ((Map<String, List<Path>>)env).getOrDefault("additional", List.<Path>of());
         @SuppressWarnings("unchecked")
         var filter = ((Map<String, BiPredicate<String, String>>)env).getOrDefault("filter", null);
+        var index = isIndexed(env);
+        var isStatic = isStatic(env);
+        var mapped = isMapped(env);
 
         if (filter == null && additional.isEmpty())
             throw new IllegalArgumentException("Missing additional and/or filter");
@@ -72,7 +106,7 @@ public class UnionFileSystemProvider extends FileSystemProvider {
         var path = uriToPath(uri);
         var key = makeKey(path);
         try {
-            return newFileSystemInternal(key, filter, Stream.concat(Stream.of(path), additional.stream()).toArray(Path[]::new));
+            return newFileSystemInternal(key, filter, index, isStatic, mapped, Stream.concat(Stream.of(path), additional.stream()).toArray(Path[]::new));
         } catch (UncheckedIOException e) {
             throw e.getCause();
         }
@@ -80,8 +114,11 @@ public class UnionFileSystemProvider extends FileSystemProvider {
 
     /**
      * Invoked by FileSystems.newFileSystem, Only returns a value if env contains one of more of:
-     *   "filter": BiPredicate<String, String> - A filter to apply to the opened path
+     *   "filter": BiPredicate<String, String> - A filter to apply to the opened path, see {@link UnionPathFilter} for one that can be precompiled
      *   "additional": List<Path> - Additional paths to join together
+     *   "index": Boolean - Build an index of every file up front, see {@link UnionFileSystem#isIndexed()}
+     *   "static": Boolean - Directories will not change while the file system is open, so misses can be cached like they are for jars
+     *   "mapped": Boolean - Open jars with {@link cpw.mods.niofs.zip.MappedZipFileSystem} instead of the JDK's zip file system
      * If none specified, throws UnsupportedOperationException instead of IllegalArgumentException
      *   so that FileSystems.newFileSystem will search for the next provider.
      * If you wish to create a UnionFileSystem explicitly, invoke newFileSystem(BiPredicate, Path...)
@@ -92,13 +129,16 @@ public class UnionFileSystemProvider extends FileSystemProvider {
         var additional = ((Map<String, List<Path>>)env).getOrDefault("additional", List.<Path>of());
         @SuppressWarnings("unchecked")
         var filter = ((Map<String, BiPredicate<String, String>>)env).getOrDefault("filter", null);
+        var index = isIndexed(env);
+        var isStatic = isStatic(env);
+        var mapped = isMapped(env);
 
         if (filter == null && additional.isEmpty())
             throw new UnsupportedOperationException("Missing additional and/or filter");
 
         var key = makeKey(path);
         try {
-            return newFileSystemInternal(key, filter, Stream.concat(Stream.of(path), additional.stream()).toArray(Path[]::new));
+            return newFileSystemInternal(key, filter, index, isStatic, mapped, Stream.concat(Stream.of(path), additional.stream()).toArray(Path[]::new));
         } catch (UncheckedIOException e) {
             throw e.getCause();
         }
@@ -107,20 +147,33 @@ public class UnionFileSystemProvider extends FileSystemProvider {
     public UnionFileSystem newFileSystem(final BiPredicate<String, String> pathfilter, final Path... paths) {
         if (paths.length == 0) throw new IllegalArgumentException("Need at least one path");
         var key = makeKey(paths[0]);
-        return newFileSystemInternal(key, pathfilter, paths);
+        return newFileSystemInternal(key, pathfilter, UnionFileSystem.INDEX_DEFAULT, UnionFileSystem.STATIC_DEFAULT, UnionFileSystem.MAPPED_DEFAULT, paths);
+    }
+
+    private static boolean isIndexed(final Map<String, ?> env) {
+        var index = env.get("index");
+        return index == null ? UnionFileSystem.INDEX_DEFAULT : (Boolean)index;
     }
 
-    private UnionFileSystem newFileSystemInternal(final String key, final BiPredicate<String, String> pathfilter, final Path... paths) {
+    private static boolean isStatic(final Map<String, ?> env) {
+        var value = env.get("static");
+        return value == null ? UnionFileSystem.STATIC_DEFAULT : (Boolean)value;
+    }
+
+    private static boolean isMapped(final Map<String, ?> env) {
+        var value = env.get("mapped");
+        return value == null ? UnionFileSystem.MAPPED_DEFAULT : (Boolean)value;
+    }
+
+    private UnionFileSystem newFileSystemInternal(final String key, final BiPredicate<String, String> pathfilter, final boolean index, final boolean isStatic, final boolean mapped, final Path... paths) {
         var normpaths = Arrays.stream(paths)
                 .map(Path::toAbsolutePath)
                 .map(Path::normalize)
                 .toArray(Path[]::new);
 
-        synchronized (fileSystems) {
-            var ufs = new UnionFileSystem(this, pathfilter, key, normpaths);
-            fileSystems.put(key, ufs);
-            return ufs;
-        }
+        var ufs = new UnionFileSystem(this, pathfilter, key, index, isStatic, mapped, normpaths);
+        fileSystems.put(key, ufs);
+        return ufs;
     }
 
     private synchronized String makeKey(Path path) {
@@ -144,19 +197,36 @@ public class UnionFileSystemProvider extends FileSystemProvider {
 
     @Override
     public Path getPath(final URI uri) {
-        var parts = uri.getPath().split("!");
-        if (parts.length > 1) {
-            return getFileSystem(uri).getPath(parts[1]);
-        } else {
-            return ((UnionFileSystem)getFileSystem(uri)).getRoot();
+        var key = uri.toString();
+        var ret = URI_CACHE_SIZE > 0 ? uriCache.get(key) : null;
+        if (ret != null) {
+            if (ret.getFileSystem().isOpen())
+                return ret;
+            uriCache.remove(key);
         }
+
+        // union:/key!/path, keys never have a ! in them so the first one is always the split
+        var path = uri.getPath();
+        int sep = path.indexOf('!');
+        var fs = getFileSystem(path, sep);
+        ret = sep == -1 || sep == path.length() - 1 ? fs.getRoot() : fs.getPath(path.substring(sep + 1));
+
+        if (URI_CACHE_SIZE > 0)
+            uriCache.put(key, ret);
+        return ret;
     }
 
     @Override
     public FileSystem getFileSystem(final URI uri) {
-        var parts = uri.getPath().split("!");
-        if (!fileSystems.containsKey(parts[0])) throw new FileSystemNotFoundException();
-        return fileSystems.get(parts[0]);
+        var path = uri.getPath();
+        return getFileSystem(path, path.indexOf('!'));
+    }
+
+    private UnionFileSystem getFileSystem(final String path, final int sep) {
+        var ret = fileSystems.get(sep == -1 ? path : path.substring(0, sep));
+        if (ret == null)
+            throw new FileSystemNotFoundException();
+        return ret;
     }
 
     @Override
@@ -169,6 +239,18 @@ public class UnionFileSystemProvider extends FileSystemProvider {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public InputStream newInputStream(final Path path, final OpenOption... options) throws IOException {
+        if (path instanceof UnionPath up) {
+            for (var option : options) {
+                if (option != StandardOpenOption.READ)
+                    throw new UnsupportedOperationException("Unsupported option " + option);
+            }
+            return up.getFileSystem().newInputStream(up);
+        }
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public DirectoryStream<Path> newDirectoryStream(final Path dir, final DirectoryStream.Filter<? super Path> filter) throws IOException {
         if (dir instanceof UnionPath up) {
@@ -247,9 +329,8 @@ public class UnionFileSystemProvider extends FileSystemProvider {
     }
 
     void removeFileSystem(UnionFileSystem fs) {
-        synchronized (fileSystems) {
-            fileSystems.remove(fs.getKey());
-        }
+        fileSystems.remove(fs.getKey(), fs);
+        uriCache.removeIf(p -> p.getFileSystem() == fs);
     }
 
     private class UnionBasicFileAttributeView implements BasicFileAttributeView {
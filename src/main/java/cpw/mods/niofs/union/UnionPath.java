@@ -8,34 +8,57 @@ package cpw.mods.niofs.union;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
-import java.util.function.IntBinaryOperator;
-import java.util.stream.IntStream;
 
+/**
+ * Paths are stored as a single string of every name joined by single slashes, and the offset each name starts at.
+ * Paths made from part of another path, like {@link #getParent()} or {@link #subpath(int, int)}, share that data
+ * and just pick which names they use, so they don't copy anything.
+ */
 public class UnionPath implements Path {
+    private static final int[] NO_OFFSETS = new int[0];
+
     private final UnionFileSystem fileSystem;
     private final boolean absolute;
-    private final String[] pathParts;
-
+    // Every name joined by single slashes, with no trailing slash. Absolute paths that were already clean keep their
+    // leading slash so the original string can be reused, the offsets skip it. Possibly shared with other paths.
+    private final String data;
+    // Where each name in data starts
+    private final int[] offsets;
+    // Which names in data are part of this path
+    private final int first;
+    private final int count;
+
+    // Cached as paths are constantly used as map keys
+    private int hash;
+    private String string;
     // Store the normalized path after it has been created first
     private UnionPath normalized;
 
     UnionPath(final UnionFileSystem fileSystem, final String... pathParts) {
         this.fileSystem = fileSystem;
+        int[] clean;
         if (pathParts.length == 0) {
             this.absolute = false;
-            this.pathParts = new String[0];
+            this.data = "";
+            this.offsets = NO_OFFSETS;
+            this.first = 0;
+            this.count = 0;
+        } else if (pathParts.length == 1 && (clean = scanClean(pathParts[0])) != null) {
+            // Nearly every path we are given is already clean, so use the string as is
+            this.absolute = pathParts[0].startsWith(UnionFileSystem.SEP_STRING);
+            this.data = clean.length == 0 ? "" : pathParts[0];
+            this.offsets = clean;
+            this.first = 0;
+            this.count = clean.length;
+            this.normalized = this;
         } else {
             StringBuilder joiner = new StringBuilder();
             for (int i = 0; i < pathParts.length; i++) {
@@ -47,27 +70,63 @@ public class UnionPath implements Path {
             }
             final var longstring = joiner.toString();
             this.absolute = longstring.startsWith(UnionFileSystem.SEP_STRING);
-            this.pathParts = getPathParts(longstring);
+            var parts = getPathParts(longstring);
+            this.data = String.join(UnionFileSystem.SEP_STRING, parts);
+            this.offsets = offsetsOf(parts);
+            this.first = 0;
+            this.count = parts.size();
         }
-        this.normalized = null;
     }
 
     // Private constructor only for known correct split and extra value for absolute
     UnionPath(final UnionFileSystem fileSystem, boolean absolute, final String... pathParts) {
-        this(fileSystem, absolute, false, pathParts);
+        this(fileSystem, absolute, String.join(UnionFileSystem.SEP_STRING, pathParts), offsetsOf(List.of(pathParts)), 0, pathParts.length);
     }
 
-    private UnionPath(final UnionFileSystem fileSystem, boolean absolute, boolean isNormalized, final String... pathParts) {
+    private UnionPath(final UnionFileSystem fileSystem, boolean absolute, final String data, final int[] offsets, final int first, final int count) {
         this.fileSystem = fileSystem;
         this.absolute = absolute;
-        this.pathParts = pathParts;
-        if (isNormalized)
-            this.normalized = this;
-        else
-            this.normalized = null;
+        this.data = data;
+        this.offsets = offsets;
+        this.first = first;
+        this.count = count;
+    }
+
+    /**
+     * Finds where each name starts in a single path string, as long as it needs no cleaning: no backslashes,
+     * no empty names from double or trailing slashes, and no "." or "..". Returns null if it does.
+     */
+    private static int[] scanClean(final String path) {
+        int len = path.length();
+        int start = len > 0 && path.charAt(0) == '/' ? 1 : 0;
+        if (start == len)
+            return NO_OFFSETS;
+
+        int names = 0;
+        int nameStart = start;
+        for (int x = start; x <= len; x++) {
+            char c = x == len ? '/' : path.charAt(x);
+            if (c == '\\')
+                return null;
+            if (c != '/')
+                continue;
+            int nameLen = x - nameStart;
+            if (nameLen == 0 || (path.charAt(nameStart) == '.' && (nameLen == 1 || (nameLen == 2 && path.charAt(nameStart + 1) == '.'))))
+                return null;
+            names++;
+            nameStart = x + 1;
+        }
+
+        var ret = new int[names];
+        ret[0] = start;
+        for (int x = start, name = 1; name < names; x++) {
+            if (path.charAt(x) == '/')
+                ret[name++] = x + 1;
+        }
+        return ret;
     }
 
-    private String[] getPathParts(final String longstring) {
+    private static List<String> getPathParts(final String longstring) {
         var clean = longstring.replace('\\', '/');
         int startIndex = 0;
         List<String> parts = new ArrayList<>();
@@ -83,7 +142,57 @@ public class UnionPath implements Path {
             }
             startIndex = (index + 1);
         }
-        return parts.toArray(String[]::new);
+        return parts;
+    }
+
+    private static int[] offsetsOf(final List<String> parts) {
+        if (parts.isEmpty())
+            return NO_OFFSETS;
+        var ret = new int[parts.size()];
+        for (int x = 1; x < ret.length; x++)
+            ret[x] = ret[x - 1] + parts.get(x - 1).length() + 1;
+        return ret;
+    }
+
+    /** A path using some of the same names as this one, without copying anything. */
+    private UnionPath view(final boolean absolute, final int first, final int count) {
+        if (count == 0)
+            return new UnionPath(this.fileSystem, absolute, "", NO_OFFSETS, 0, 0);
+        return new UnionPath(this.fileSystem, absolute, this.data, this.offsets, this.first + first, count);
+    }
+
+    private int start(final int index) {
+        return this.offsets[this.first + index];
+    }
+
+    private int end(final int index) {
+        var next = this.first + index + 1;
+        return next < this.offsets.length ? this.offsets[next] - 1 : this.data.length();
+    }
+
+    private String name(final int index) {
+        return this.data.substring(start(index), end(index));
+    }
+
+    private boolean nameEquals(final int index, final UnionPath other, final int otherIndex) {
+        int start = start(index);
+        int len = end(index) - start;
+        int ostart = other.start(otherIndex);
+        return len == other.end(otherIndex) - ostart && this.data.regionMatches(start, other.data, ostart, len);
+    }
+
+    private boolean nameEquals(final int index, final String name) {
+        int start = start(index);
+        return end(index) - start == name.length() && this.data.startsWith(name, start);
+    }
+
+    /** Where this path's names start and end in data, they are always next to each other. */
+    private int from() {
+        return this.count == 0 ? 0 : start(0);
+    }
+
+    private int to() {
+        return this.count == 0 ? 0 : end(this.count - 1);
     }
 
     @Override
@@ -107,20 +216,20 @@ public class UnionPath implements Path {
 
     @Override
     public Path getFileName() {
-        if (this.pathParts.length > 0) {
-            return new UnionPath(this.getFileSystem(), false, this.pathParts[this.pathParts.length - 1]);
+        if (this.count > 0) {
+            return !this.absolute && this.count == 1 ? this : view(false, this.count - 1, 1);
         } else {
             // normally would be null for the empty absolute path and empty string for the empty relative
             // path. But again, very much stuff relies on it and there's no current directory for union
             // paths, so it does not really matter.
-            return new UnionPath(this.fileSystem, false);
+            return view(false, 0, 0);
         }
     }
 
     @Override
     public Path getParent() {
-        if (this.pathParts.length > 0) {
-            return new UnionPath(this.fileSystem, this.absolute, Arrays.copyOf(this.pathParts,this.pathParts.length - 1));
+        if (this.count > 0) {
+            return view(this.absolute, 0, this.count - 1);
         } else {
             return null;
         }
@@ -128,26 +237,26 @@ public class UnionPath implements Path {
 
     @Override
     public int getNameCount() {
-        return this.pathParts.length;
+        return this.count;
     }
 
     @Override
     public Path getName(final int index) {
-        if (index < 0 || index > this.pathParts.length -1) throw new IllegalArgumentException();
-        return new UnionPath(this.fileSystem, false, this.pathParts[index]);
+        if (index < 0 || index > this.count -1) throw new IllegalArgumentException();
+        return view(false, index, 1);
     }
 
     @Override
     public UnionPath subpath(final int beginIndex, final int endIndex) {
-        if (!this.absolute && this.pathParts.length == 0 && beginIndex == 0 && endIndex == 1)
-            return new UnionPath(this.fileSystem, false);
-        if (beginIndex < 0 || beginIndex > this.pathParts.length - 1 || endIndex < 0 || endIndex > this.pathParts.length || beginIndex >= endIndex) {
-            throw new IllegalArgumentException("Out of range "+beginIndex+" to "+endIndex+" for length "+this.pathParts.length);
+        if (!this.absolute && this.count == 0 && beginIndex == 0 && endIndex == 1)
+            return view(false, 0, 0);
+        if (beginIndex < 0 || beginIndex > this.count - 1 || endIndex < 0 || endIndex > this.count || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("Out of range "+beginIndex+" to "+endIndex+" for length "+this.count);
         }
-        if (!this.absolute && beginIndex == 0 && endIndex == this.pathParts.length) {
+        if (!this.absolute && beginIndex == 0 && endIndex == this.count) {
             return this;
         }
-        return new UnionPath(this.fileSystem, false, Arrays.copyOfRange(this.pathParts, beginIndex, endIndex));
+        return view(false, beginIndex, endIndex - beginIndex);
     }
 
     @Override
@@ -158,7 +267,12 @@ public class UnionPath implements Path {
         if (other instanceof UnionPath bp) {
             if (this.absolute != bp.absolute)
                 return false;
-            return checkArraysMatch(this.pathParts, bp.pathParts, false);
+            var length = Math.min(this.count, bp.count);
+            for (int i = 0; i < length; i++) {
+                if (!nameEquals(i, bp, i))
+                    return false;
+            }
+            return true;
         }
         return false;
     }
@@ -172,44 +286,47 @@ public class UnionPath implements Path {
         if (other instanceof UnionPath bp) {
             if (!this.absolute && bp.absolute)
                 return false;
-            return checkArraysMatch(this.pathParts, bp.pathParts, true);
+            var length = Math.min(this.count, bp.count);
+            for (int i = 0; i < length; i++) {
+                if (!nameEquals(this.count - i - 1, bp, bp.count - i - 1))
+                    return false;
+            }
+            return true;
         }
         return false;
     }
 
-    private static boolean checkArraysMatch(String[] array1, String[] array2, boolean reverse) {
-        var length = Math.min(array1.length, array2.length);
-        IntBinaryOperator offset = reverse ? (l, i) -> l - i - 1 : (l, i) -> i;
-        for (int i = 0; i < length; i++) {
-            if (!Objects.equals(array1[offset.applyAsInt(array1.length, i)], array2[offset.applyAsInt(array2.length, i)]))
-                return false;
-        }
-        return true;
-    }
-
     @Override
     public Path normalize() {
         if (normalized != null)
             return normalized;
-        Deque<String> normpath = new ArrayDeque<>();
-        for (String pathPart : this.pathParts) {
-            switch (pathPart) {
-                case ".":
-                    break;
-                case "..":
-                    if (normpath.isEmpty() || normpath.getLast().equals("..")) {
-                        // .. on an empty path is allowed, so keep it
-                        normpath.addLast(pathPart);
-                    } else {
-                        normpath.removeLast();
-                    }
-                    break;
-                default:
-                    normpath.addLast(pathPart);
-                    break;
+
+        boolean needed = false;
+        for (int i = 0; i < this.count && !needed; i++)
+            needed = nameEquals(i, ".") || nameEquals(i, "..");
+        if (!needed) {
+            normalized = this;
+            return this;
+        }
+
+        var normpath = new ArrayList<String>(this.count);
+        for (int i = 0; i < this.count; i++) {
+            if (nameEquals(i, "."))
+                continue;
+            if (nameEquals(i, "..")) {
+                if (normpath.isEmpty() || normpath.get(normpath.size() - 1).equals("..")) {
+                    // .. on an empty path is allowed, so keep it
+                    normpath.add("..");
+                } else {
+                    normpath.remove(normpath.size() - 1);
+                }
+            } else {
+                normpath.add(name(i));
             }
         }
-        normalized = new UnionPath(this.fileSystem, this.absolute, true, normpath.toArray(new String[0]));
+        var ret = new UnionPath(this.fileSystem, this.absolute, String.join(UnionFileSystem.SEP_STRING, normpath), offsetsOf(normpath), 0, normpath.size());
+        ret.normalized = ret;
+        normalized = ret;
         return normalized;
     }
 
@@ -219,10 +336,20 @@ public class UnionPath implements Path {
             if (path.isAbsolute()) {
                 return path;
             }
-            String[] mergedParts = new String[this.pathParts.length + path.pathParts.length];
-            System.arraycopy(this.pathParts, 0, mergedParts, 0, this.pathParts.length);
-            System.arraycopy(path.pathParts, 0, mergedParts, this.pathParts.length, path.pathParts.length);
-            return new UnionPath(this.fileSystem, this.absolute, mergedParts);
+            if (path.count == 0)
+                return this;
+            if (this.count == 0)
+                return path.absolute == this.absolute ? path : path.view(this.absolute, 0, path.count);
+
+            var data = this.data.substring(from(), to()) + '/' + path.data.substring(path.from(), path.to());
+            var offsets = new int[this.count + path.count];
+            int shift = from();
+            for (int i = 0; i < this.count; i++)
+                offsets[i] = start(i) - shift;
+            shift = to() + 1 - shift - path.from();
+            for (int i = 0; i < path.count; i++)
+                offsets[this.count + i] = path.start(i) + shift;
+            return new UnionPath(this.fileSystem, this.absolute, data, offsets, 0, offsets.length);
         }
         return other;
     }
@@ -238,30 +365,26 @@ public class UnionPath implements Path {
                 // so we just allow this.
                 //throw new IllegalArgumentException("Different types of path");
             //}
-            var length = Math.min(this.pathParts.length, p.pathParts.length);
+            var length = Math.min(this.count, p.count);
             int i = 0;
             while (i < length) {
-                if (!Objects.equals(this.pathParts[i], p.pathParts[i]))
+                if (!nameEquals(i, p, i))
                     break;
                 i++;
             }
 
-            var remaining = this.pathParts.length - i;
-            if (remaining == 0 && i == p.pathParts.length) {
-                return new UnionPath(this.getFileSystem(), false);
+            var remaining = this.count - i;
+            if (remaining == 0 && i == p.count) {
+                return view(false, 0, 0);
             } else if (remaining == 0) {
                 return p.subpath(i, p.getNameCount());
             } else {
-                var updots = IntStream.range(0, remaining).mapToObj(idx -> "..").toArray(String[]::new);
-                if (i == p.pathParts.length) {
-                    return new UnionPath(this.getFileSystem(), false, updots);
-                } else {
-                    var subpath = p.subpath(i, p.getNameCount());
-                    String[] mergedParts = new String[updots.length + subpath.pathParts.length];
-                    System.arraycopy(updots, 0, mergedParts, 0, updots.length);
-                    System.arraycopy(subpath.pathParts, 0, mergedParts, updots.length, subpath.pathParts.length);
-                    return new UnionPath(this.getFileSystem(), false, mergedParts);
-                }
+                var parts = new ArrayList<String>(remaining + p.count - i);
+                for (int x = 0; x < remaining; x++)
+                    parts.add("..");
+                for (int x = i; x < p.count; x++)
+                    parts.add(p.name(x));
+                return new UnionPath(this.fileSystem, false, String.join(UnionFileSystem.SEP_STRING, parts), offsetsOf(parts), 0, parts.size());
             }
         }
         throw new IllegalArgumentException("Wrong filesystem");
@@ -269,16 +392,7 @@ public class UnionPath implements Path {
 
     @Override
     public URI toUri() {
-        try {
-            return new URI(
-                fileSystem.provider().getScheme(),
-                null,
-                fileSystem.getKey() + '!' + toAbsolutePath(),
-                null
-            );
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(e);
-        }
+        return this.fileSystem.toUri(this);
     }
 
     @Override
@@ -286,7 +400,7 @@ public class UnionPath implements Path {
         if (isAbsolute())
             return this;
         else
-            return fileSystem.getRoot().resolve(this);
+            return view(true, 0, this.count);
     }
 
     @Override
@@ -306,8 +420,21 @@ public class UnionPath implements Path {
                 return 1;
             else if (!this.absolute && path.absolute)
                 return -1;
-            else
-                return Arrays.compare(this.pathParts, path.pathParts);
+
+            // Name by name, same as comparing arrays of them
+            var length = Math.min(this.count, path.count);
+            for (int i = 0; i < length; i++) {
+                int start = start(i), len = end(i) - start;
+                int ostart = path.start(i), olen = path.end(i) - ostart;
+                for (int c = 0; c < Math.min(len, olen); c++) {
+                    int diff = this.data.charAt(start + c) - path.data.charAt(ostart + c);
+                    if (diff != 0)
+                        return diff;
+                }
+                if (len != olen)
+                    return len - olen;
+            }
+            return this.count - path.count;
         } else {
             return 0;
         }
@@ -315,20 +442,49 @@ public class UnionPath implements Path {
 
     @Override
     public boolean equals(final Object o) {
+        if (o == this)
+            return true;
         if (o instanceof UnionPath p) {
-            return p.getFileSystem() == this.getFileSystem() && this.absolute == p.absolute && Arrays.equals(this.pathParts, p.pathParts);
+            if (p.getFileSystem() != this.getFileSystem() || this.absolute != p.absolute || this.count != p.count)
+                return false;
+            // Names are always separated by single slashes, so the same names means the same characters
+            int from = from(), len = to() - from;
+            int ofrom = p.from();
+            return len == p.to() - ofrom && this.data.regionMatches(from, p.data, ofrom, len);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(this.fileSystem) + 31 * Arrays.hashCode(this.pathParts);
+        int ret = this.hash;
+        if (ret == 0) {
+            int h = 0;
+            for (int x = from(), end = to(); x < end; x++)
+                h = 31 * h + this.data.charAt(x);
+            ret = Objects.hashCode(this.fileSystem) + 31 * h;
+            this.hash = ret;
+        }
+        return ret;
     }
 
     @Override
     public String toString() {
-        return (this.absolute ? UnionFileSystem.SEP_STRING : "") + String.join(UnionFileSystem.SEP_STRING, this.pathParts);
+        var ret = this.string;
+        if (ret == null) {
+            int from = from(), to = to();
+            // Names are always after a slash unless they're first, so absolute paths can often include it
+            if (this.absolute && from > 0)
+                from--;
+            if (from == 0 && to == this.data.length())
+                ret = this.data;
+            else
+                ret = this.data.substring(from, to);
+            if (this.absolute && (this.count == 0 || ret.charAt(0) != '/'))
+                ret = UnionFileSystem.SEP_STRING + ret;
+            this.string = ret;
+        }
+        return ret;
     }
 
     public InputStream buildInputStream() {
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.union;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * A path filter made of simple rules instead of code, so it can be compiled up front and checked against a path
+ * without building any strings. Can be used anywhere a {@code BiPredicate<String, String>} filter is accepted,
+ * such as {@link cpw.mods.jarhandling.SecureJar#from(BiPredicate, java.nio.file.Path...)} or the union file
+ * system's "filter" option.
+ * <p>
+ * A path is visible if it matches no exclude rule, and either there are no include rules or it matches one of them.
+ * <ul>
+ *   <li>Prefixes match whole names, {@code "net/minecraftforge"} matches that directory and everything in it, but not {@code "net/minecraftforgex"}</li>
+ *   <li>Suffixes match the end of the last name, like {@code ".class"}</li>
+ *   <li>Globs use the same syntax as {@link java.nio.file.FileSystem#getPathMatcher(String)} and are matched against the whole path</li>
+ * </ul>
+ * Directories that could hold something included are always visible, so that walking the file system still finds it.
+ * <p>
+ * Rules added with {@link Builder#forBase(String, Consumer)} only apply to bases whose path ends with that name,
+ * on top of the rules that apply everywhere.
+ */
+public final class UnionPathFilter implements BiPredicate<String, String> {
+    static final int ACCEPT = 0;
+    static final int REJECT = 1;
+    /** Rejected, and so is everything inside it, so walks can skip the whole directory */
+    static final int REJECT_ALL = 2;
+
+    private final Rules rules;
+    private final String[] bases;
+    private final Rules[] baseRules;
+    private final BiPredicate<String, String> predicate;
+    private final Map<String, Rules> rulesByBase = new ConcurrentHashMap<>();
+
+    private UnionPathFilter(Builder builder) {
+        this.rules = new Rules(builder, null);
+        this.bases = new String[builder.bases.size()];
+        this.baseRules = new Rules[this.bases.length];
+        for (int x = 0; x < this.bases.length; x++) {
+            var base = builder.bases.get(x);
+            this.bases[x] = base.name;
+            this.baseRules[x] = new Rules(builder, base.rules);
+        }
+        this.predicate = builder.predicate;
+    }
+
+    public static Builder builder() {
+        return new Builder(true);
+    }
+
+    /**
+     * @param path The path relative to the base, using / and ending in / if it's a directory. The same as every other filter gets.
+     * @param base The base the path is in
+     */
+    @Override
+    public boolean test(String path, String base) {
+        boolean directory = path.endsWith("/");
+        int start = path.startsWith("/") ? 1 : 0;
+        return check(path, start, Math.max(start, directory ? path.length() - 1 : path.length()), directory, base) == ACCEPT;
+    }
+
+    /**
+     * Checks the names in path between start and end, without any leading or trailing separator.
+     * Either type of slash is treated as a separator.
+     */
+    int check(String path, int start, int end, boolean directory, String base) {
+        var rules = rulesFor(base);
+        int ret = rules.check(path, start, end, directory);
+        if (ret == ACCEPT && this.predicate != null) {
+            String name = start == end ? "/" : slice(path, start, end);
+            if (!this.predicate.test(directory && start != end ? name + '/' : name, base))
+                ret = REJECT;
+        }
+        return ret;
+    }
+
+    private Rules rulesFor(String base) {
+        if (this.bases.length == 0)
+            return this.rules;
+        var ret = this.rulesByBase.get(base);
+        if (ret == null) {
+            ret = this.rules;
+            var normalized = base.replace('\\', '/');
+            for (int x = 0; x < this.bases.length; x++) {
+                var name = this.bases[x];
+                if (name.isEmpty() || normalized.equals(name) || (normalized.endsWith(name) && normalized.charAt(normalized.length() - name.length() - 1) == '/')) {
+                    ret = this.baseRules[x];
+                    break;
+                }
+            }
+            this.rulesByBase.put(base, ret);
+        }
+        return ret;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '/' || c == '\\';
+    }
+
+    private static String slice(String path, int start, int end) {
+        return path.substring(start, end).replace('\\', '/');
+    }
+
+    private static String clean(String name) {
+        name = name.replace('\\', '/');
+        int start = 0, end = name.length();
+        while (start < end && name.charAt(start) == '/')
+            start++;
+        while (end > start && name.charAt(end - 1) == '/')
+            end--;
+        return name.substring(start, end);
+    }
+
+    public static final class Builder {
+        private final boolean root;
+        private final List<String> includes = new ArrayList<>();
+        private final List<String> excludes = new ArrayList<>();
+        private final List<String> includeSuffixes = new ArrayList<>();
+        private final List<String> excludeSuffixes = new ArrayList<>();
+        private final List<String> includeGlobs = new ArrayList<>();
+        private final List<String> excludeGlobs = new ArrayList<>();
+        private final List<Base> bases = new ArrayList<>();
+        private BiPredicate<String, String> predicate;
+
+        private record Base(String name, Builder rules) {}
+
+        private Builder(boolean root) {
+            this.root = root;
+        }
+
+        /** Only paths under these prefixes, and any other includes, are visible. */
+        public Builder include(String... prefixes) {
+            for (var prefix : prefixes)
+                this.includes.add(clean(prefix));
+            return this;
+        }
+
+        /** Hides these prefixes and everything under them. */
+        public Builder exclude(String... prefixes) {
+            for (var prefix : prefixes)
+                this.excludes.add(clean(prefix));
+            return this;
+        }
+
+        public Builder includeSuffix(String... suffixes) {
+            this.includeSuffixes.addAll(Arrays.asList(suffixes));
+            return this;
+        }
+
+        public Builder excludeSuffix(String... suffixes) {
+            this.excludeSuffixes.addAll(Arrays.asList(suffixes));
+            return this;
+        }
+
+        public Builder includeGlob(String... globs) {
+            this.includeGlobs.addAll(Arrays.asList(globs));
+            return this;
+        }
+
+        public Builder excludeGlob(String... globs) {
+            this.excludeGlobs.addAll(Arrays.asList(globs));
+            return this;
+        }
+
+        /**
+         * Extra rules for a single base, matched against the end of the base's path, like {@code "mymod.jar"}.
+         * The first matching base is used.
+         */
+        public Builder forBase(String base, Consumer<Builder> rules) {
+            if (!this.root)
+                throw new IllegalStateException("Base rules can not be nested");
+            var builder = new Builder(false);
+            rules.accept(builder);
+            this.bases.add(new Base(clean(base), builder));
+            return this;
+        }
+
+        /**
+         * Anything the rules can't express. Only asked about paths the rules accept, so it costs the same
+         * as a normal filter but only for those paths.
+         */
+        public Builder and(BiPredicate<String, String> predicate) {
+            if (!this.root)
+                throw new IllegalStateException("Predicates can only be added to the top level filter");
+            this.predicate = this.predicate == null ? predicate : this.predicate.and(predicate);
+            return this;
+        }
+
+        public UnionPathFilter build() {
+            return new UnionPathFilter(this);
+        }
+    }
+
+    /** Every rule for one base, compiled. */
+    private static final class Rules {
+        private final Node root = new Node();
+        private final String[] includeSuffixes;
+        private final String[] excludeSuffixes;
+        private final Pattern[] includeGlobs;
+        private final Pattern[] excludeGlobs;
+        private final boolean hasIncludes;
+        // Any directory could hold something a suffix or glob includes
+        private final boolean openDirectories;
+
+        private Rules(Builder common, Builder base) {
+            var builders = base == null ? List.of(common) : List.of(common, base);
+            var includeSuffixes = new ArrayList<String>();
+            var excludeSuffixes = new ArrayList<String>();
+            var includeGlobs = new ArrayList<Pattern>();
+            var excludeGlobs = new ArrayList<Pattern>();
+            boolean includes = false;
+            for (var builder : builders) {
+                for (var prefix : builder.includes)
+                    this.root.add(prefix).include = true;
+                for (var prefix : builder.excludes)
+                    this.root.add(prefix).exclude = true;
+                includeSuffixes.addAll(builder.includeSuffixes);
+                excludeSuffixes.addAll(builder.excludeSuffixes);
+                builder.includeGlobs.forEach(g -> includeGlobs.add(globToPattern(g)));
+                builder.excludeGlobs.forEach(g -> excludeGlobs.add(globToPattern(g)));
+                includes |= !builder.includes.isEmpty();
+            }
+            this.root.markIncludesBelow();
+            this.includeSuffixes = includeSuffixes.toArray(String[]::new);
+            this.excludeSuffixes = excludeSuffixes.toArray(String[]::new);
+            this.includeGlobs = includeGlobs.toArray(Pattern[]::new);
+            this.excludeGlobs = excludeGlobs.toArray(Pattern[]::new);
+            this.openDirectories = this.includeSuffixes.length > 0 || this.includeGlobs.length > 0;
+            this.hasIncludes = includes || this.openDirectories;
+        }
+
+        private int check(String path, int start, int end, boolean directory) {
+            if (this.root.exclude)
+                return REJECT_ALL;
+
+            // Walk the prefixes, name by name
+            var node = this.root;
+            boolean included = this.root.include;
+            int last = start;
+            int x = start;
+            while (x < end) {
+                int next = x;
+                while (next < end && !isSeparator(path.charAt(next)))
+                    next++;
+                if (next != x) {
+                    last = x;
+                    if (node != null) {
+                        node = node.child(path, x, next);
+                        if (node != null) {
+                            if (node.exclude)
+                                return REJECT_ALL;
+                            included |= node.include;
+                        }
+                    }
+                }
+                x = next + 1;
+            }
+
+            for (var suffix : this.excludeSuffixes) {
+                if (endsWith(path, last, end, suffix))
+                    return REJECT;
+            }
+            String name = null;
+            for (var glob : this.excludeGlobs) {
+                if (name == null)
+                    name = slice(path, start, end);
+                if (glob.matcher(name).matches())
+                    return REJECT;
+            }
+
+            if (!this.hasIncludes || included)
+                return ACCEPT;
+            if (directory && (this.openDirectories || (node != null && node.includesBelow)))
+                return ACCEPT;
+            for (var suffix : this.includeSuffixes) {
+                if (endsWith(path, last, end, suffix))
+                    return ACCEPT;
+            }
+            for (var glob : this.includeGlobs) {
+                if (name == null)
+                    name = slice(path, start, end);
+                if (glob.matcher(name).matches())
+                    return ACCEPT;
+            }
+
+            // Nothing under a directory that isn't on the way to an include can be included either
+            return directory && !this.openDirectories ? REJECT_ALL : REJECT;
+        }
+
+        private static boolean endsWith(String path, int start, int end, String suffix) {
+            int len = suffix.length();
+            return end - start >= len && path.regionMatches(end - len, suffix, 0, len);
+        }
+    }
+
+    /** A single name in the prefix tree */
+    private static final class Node {
+        private static final String[] NO_NAMES = new String[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        private String[] names = NO_NAMES;
+        private Node[] children = NO_NODES;
+        private boolean include;
+        private boolean exclude;
+        private boolean includesBelow;
+
+        private Node add(String prefix) {
+            var node = this;
+            if (prefix.isEmpty())
+                return node;
+            for (var name : prefix.split("/")) {
+                if (name.isEmpty())
+                    continue;
+                var next = node.child(name, 0, name.length());
+                if (next == null) {
+                    int size = node.names.length;
+                    node.names = Arrays.copyOf(node.names, size + 1);
+                    node.children = Arrays.copyOf(node.children, size + 1);
+                    node.names[size] = name;
+                    next = node.children[size] = new Node();
+                }
+                node = next;
+            }
+            return node;
+        }
+
+        private Node child(String path, int start, int end) {
+            int len = end - start;
+            for (int x = 0; x < this.names.length; x++) {
+                var name = this.names[x];
+                if (name.length() == len && path.regionMatches(start, name, 0, len))
+                    return this.children[x];
+            }
+            return null;
+        }
+
+        private boolean markIncludesBelow() {
+            for (var child : this.children)
+                this.includesBelow |= child.markIncludesBelow();
+            return this.include || this.includesBelow;
+        }
+    }
+
+    /** The same glob syntax the JDK's file systems use, with / as the only separator. */
+    static Pattern globToPattern(String glob) {
+        var regex = new StringBuilder("^");
+        boolean inGroup = false;
+        for (int x = 0; x < glob.length(); x++) {
+            char c = glob.charAt(x);
+            switch (c) {
+                case '\\' -> {
+                    if (++x == glob.length())
+                        throw new IllegalArgumentException("No character to escape at end of glob: " + glob);
+                    appendLiteral(regex, glob.charAt(x));
+                }
+                case '/' -> regex.append('/');
+                case '*' -> {
+                    if (x + 1 < glob.length() && glob.charAt(x + 1) == '*') {
+                        regex.append(".*");
+                        x++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '{' -> {
+                    if (inGroup)
+                        throw new IllegalArgumentException("Nested groups are not supported in glob: " + glob);
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                }
+                case '}' -> {
+                    if (inGroup) {
+                        regex.append("))");
+                        inGroup = false;
+                    } else {
+                        regex.append('}');
+                    }
+                }
+                case ',' -> regex.append(inGroup ? ")|(?:" : ",");
+                case '[' -> {
+                    int close = glob.indexOf(']', x + 2);
+                    if (close == -1)
+                        throw new IllegalArgumentException("Missing ] in glob: " + glob);
+                    regex.append("[[^/]&&[");
+                    int y = x + 1;
+                    if (glob.charAt(y) == '!' || glob.charAt(y) == '^') {
+                        regex.append('^');
+                        y++;
+                    }
+                    for (; y < close; y++) {
+                        char cc = glob.charAt(y);
+                        if (cc == '\\' || cc == '[' || cc == '&' || (cc == '^' && y > x + 1))
+                            regex.append('\\');
+                        regex.append(cc);
+                    }
+                    regex.append("]]");
+                    x = close;
+                }
+                default -> appendLiteral(regex, c);
+            }
+        }
+        if (inGroup)
+            throw new IllegalArgumentException("Missing } in glob: " + glob);
+        return Pattern.compile(regex.append('$').toString());
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if ("\\^$.|?*+()[]{}".indexOf(c) != -1)
+            regex.append('\\');
+        regex.append(c);
+    }
+}
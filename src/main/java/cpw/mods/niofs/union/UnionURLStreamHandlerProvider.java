@@ -7,13 +7,14 @@ package cpw.mods.niofs.union;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.spi.URLStreamHandlerProvider;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 
 
 public class UnionURLStreamHandlerProvider extends URLStreamHandlerProvider {
@@ -23,28 +24,68 @@ public class UnionURLStreamHandlerProvider extends URLStreamHandlerProvider {
             return new URLStreamHandler() {
                 @Override
                 protected URLConnection openConnection(URL url) throws IOException {
-                    return new URLConnection(url) {
-                        @Override public void connect() throws IOException {}
-
-                        @Override
-                        public InputStream getInputStream() throws IOException {
-                            try {
-                                if (Paths.get(this.url.toURI()) instanceof UnionPath upath)
-                                    return upath.buildInputStream();
-                                throw new IllegalArgumentException("Invalid Path " + this.url.toURI());
-                            } catch (URISyntaxException e) {
-                                return sneak(e);
-                            } catch (UncheckedIOException e) {
-                                throw e.getCause();
-                            }
-                        }
-                    };
+                    return new UnionURLConnection(url);
                 }
             };
         }
         return null;
     }
 
+    /**
+     * Streams straight from the file in whichever base has it, and answers the length and modified time from its
+     * attributes, so callers that only want those never have to read the file.
+     */
+    private static class UnionURLConnection extends URLConnection {
+        private UnionPath path;
+        private BasicFileAttributes attributes;
+
+        private UnionURLConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (this.connected)
+                return;
+            try {
+                if (!(Paths.get(this.url.toURI()) instanceof UnionPath upath))
+                    throw new IllegalArgumentException("Invalid Path " + this.url.toURI());
+                this.path = upath;
+                this.attributes = Files.readAttributes(upath, BasicFileAttributes.class);
+                this.connected = true;
+            } catch (URISyntaxException e) {
+                sneak(e);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return Files.newInputStream(this.path);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            try {
+                connect();
+                return this.attributes.size();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public long getLastModified() {
+            try {
+                connect();
+                var time = this.attributes.lastModifiedTime();
+                return time == null ? 0 : time.toMillis();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private static <E extends Throwable, R> R sneak(Exception exception) throws E {
         throw (E)exception;
@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A read only zip file system that maps the whole file into memory and parses the central directory once.
+ * <p>
+ * Stored entries are handed out as slices of the mapping, so reading them never copies anything. Deflated entries
+ * are inflated straight from the mapping. As nothing goes through a FileChannel after the file is opened, thread
+ * interrupts can't close it out from under everyone else like they can with the JDK's ZipFileSystem.
+ * <p>
+ * This only supports what jars need: stored and deflated entries, and zip64. Anything else is thrown as a
+ * {@link ZipException} when the file is opened, so callers can fall back to the normal zip file system.
+ */
+public final class MappedZipFileSystem extends FileSystem {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOC_SIZE = 20;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int NTFS_EXTRA = 0x000A;
+    private static final int EXT_TIME_EXTRA = 0x5455;
+    private static final long WINDOWS_EPOCH_OFFSET = 11644473600000L; // 1601 to 1970 in millis
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    /**
+     * A single file or directory, which is also its own attributes. Directories that only exist because something is
+     * inside them have no data. Names never have a leading or trailing slash, and the root is the empty string.
+     */
+    static final class Node implements BasicFileAttributes {
+        final String name;
+        final boolean directory;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long offset;
+        final long time;
+        final long extendedTime; // Millis from the extra data, -1 if there was none
+        Node[] children;
+        private FileTime modified;
+
+        private Node(String name, boolean directory, int method, long compressedSize, long size, long offset, long time, long extendedTime) {
+            this.name = name;
+            this.directory = directory;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.time = time;
+            this.extendedTime = extendedTime;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            var ret = this.modified;
+            if (ret == null)
+                ret = this.modified = FileTime.fromMillis(this.extendedTime != -1 ? this.extendedTime : dosToJava(this.time));
+            return ret;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !this.directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return this.directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return this.size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+
+        private static long dosToJava(long dtime) {
+            if (dtime == 0)
+                return 0;
+            try {
+                var ldt = LocalDateTime.of(
+                    (int)(((dtime >> 25) & 0x7f) + 1980),
+                    (int)((dtime >> 21) & 0x0f),
+                    (int)((dtime >> 16) & 0x1f),
+                    (int)((dtime >> 11) & 0x1f),
+                    (int)((dtime >> 5) & 0x3f),
+                    (int)((dtime << 1) & 0x3e));
+                return ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (RuntimeException e) {
+                return 0; // Invalid date, same as not having one
+            }
+        }
+    }
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final MappedZipFileSystemProvider provider;
+    private final Path zip;
+    private final Map<String, Node> nodes;
+    private final MappedZipPath root;
+    private volatile ByteBuffer data;
+
+    MappedZipFileSystem(MappedZipFileSystemProvider provider, Path zip) throws IOException {
+        this.provider = provider;
+        this.zip = zip;
+        try (var ch = FileChannel.open(zip, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new ZipException("Zip file too large to map: " + zip);
+            // The mapping stays valid after the channel is closed
+            this.data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        this.nodes = readNodes(this.data, zip);
+        this.root = new MappedZipPath(this, "/");
+    }
+
+    /** The zip file this was opened from. */
+    public Path getZipFile() {
+        return this.zip;
+    }
+
+    @Override
+    public MappedZipFileSystemProvider provider() {
+        return this.provider;
+    }
+
+    @Override
+    public void close() {
+        if (this.data == null)
+            return;
+        // There is no safe way to unmap, so just drop the buffer and let the GC clean it up once nobody is reading it.
+        this.data = null;
+        this.provider.removeFileSystem(this);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.data != null;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.singletonList(this.root);
+    }
+
+    MappedZipPath getRoot() {
+        return this.root;
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections::emptyIterator;
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        if (more.length == 0)
+            return new MappedZipPath(this, first);
+        var buf = new StringBuilder(first);
+        for (var part : more) {
+            if (part.isEmpty())
+                continue;
+            if (buf.length() > 0)
+                buf.append('/');
+            buf.append(part);
+        }
+        return new MappedZipPath(this, buf.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns true if the path is a file or directory in this zip. This never throws for missing files, so it's the
+     * cheapest way to check.
+     */
+    public boolean exists(Path path) {
+        return path instanceof MappedZipPath mpath && mpath.getFileSystem() == this && getNode(mpath) != null;
+    }
+
+    /**
+     * Reads the whole file, stored entries are a read only slice of the mapping so nothing is copied.
+     */
+    public ByteBuffer read(Path path) throws IOException {
+        var node = path instanceof MappedZipPath mpath && mpath.getFileSystem() == this ? getNode(mpath) : null;
+        if (node == null || node.directory)
+            throw new NoSuchFileException(String.valueOf(path));
+        return read(node);
+    }
+
+    Node getNode(MappedZipPath path) {
+        ensureOpen();
+        return this.nodes.get(path.toEntryName());
+    }
+
+    Node[] getChildren(Node node) {
+        return node.children == null ? NO_CHILDREN : node.children;
+    }
+
+    /**
+     * The entry's data as it is in the file. For stored entries this is the data itself.
+     */
+    private ByteBuffer raw(Node node) throws IOException {
+        var buf = this.data;
+        if (buf == null)
+            throw new ClosedChannelException();
+        if (node.offset + LOC_SIZE > buf.limit() || buf.getInt((int)node.offset) != LOC_SIG)
+            throw new ZipException("Invalid local header for " + node.name);
+        int nlen = buf.getShort((int)node.offset + 26) & 0xFFFF;
+        int elen = buf.getShort((int)node.offset + 28) & 0xFFFF;
+        long start = node.offset + LOC_SIZE + nlen + elen;
+        if (start + node.compressedSize > buf.limit())
+            throw new ZipException("Truncated data for " + node.name);
+        return buf.slice((int)start, (int)node.compressedSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The entry's contents. Stored entries are a read only view of the mapping, deflated entries are inflated into a new buffer.
+     */
+    ByteBuffer read(Node node) throws IOException {
+        var raw = raw(node);
+        if (node.method == STORED)
+            return raw.asReadOnlyBuffer();
+
+        if (node.size > Integer.MAX_VALUE)
+            throw new ZipException("Entry too large: " + node.name);
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw);
+            var ret = new byte[(int)node.size];
+            int len = 0;
+            while (len < ret.length && !inflater.finished()) {
+                int read = inflater.inflate(ret, len, ret.length - len);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ZipException("Truncated data for " + node.name);
+                len += read;
+            }
+            return ByteBuffer.wrap(ret, 0, len);
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid data for " + node.name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A stream of the entry's contents. Unlike {@link #read(Node)} deflated entries are inflated as they are read,
+     * so large entries are never fully in memory.
+     */
+    InputStream newInputStream(Node node) throws IOException {
+        var raw = raw(node);
+        if (node.method == STORED)
+            return new ByteBufferInputStream(raw);
+        var inflater = new Inflater(true);
+        int size = (int)Math.max(64, Math.min(8192, node.compressedSize));
+        return new InflaterInputStream(new ByteBufferInputStream(raw), inflater, size) {
+            private boolean closed = false;
+
+            @Override
+            public int available() throws IOException {
+                if (this.closed)
+                    return 0;
+                // Tell readAllBytes how big to make its buffer up front
+                long remaining = node.size - this.inf.getBytesWritten();
+                return remaining <= 0 ? super.available() : (int)Math.min(Integer.MAX_VALUE, remaining);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!this.closed) {
+                    this.closed = true;
+                    this.inf.end();
+                    super.close();
+                }
+            }
+        };
+    }
+
+    private void ensureOpen() {
+        if (this.data == null)
+            throw new ClosedFileSystemException();
+    }
+
+    private static Map<String, Node> readNodes(ByteBuffer buf, Path zip) throws IOException {
+        var cen = findCentralDirectory(buf);
+        var nodes = new HashMap<String, Node>();
+        var children = new HashMap<String, List<Node>>();
+        var root = new Node("", true, STORED, 0, 0, -1, 0, -1);
+        nodes.put("", root);
+
+        int pos = cen[0];
+        int end = cen[1];
+        while (pos + CEN_SIZE <= end) {
+            if (buf.getInt(pos) != CEN_SIG)
+                throw new ZipException("Invalid central directory header in " + zip);
+
+            int flag = buf.getShort(pos + 8) & 0xFFFF;
+            int method = buf.getShort(pos + 10) & 0xFFFF;
+            long time = buf.getInt(pos + 12) & ZIP64_MAGIC;
+            long csize = buf.getInt(pos + 20) & ZIP64_MAGIC;
+            long size = buf.getInt(pos + 24) & ZIP64_MAGIC;
+            int nlen = buf.getShort(pos + 28) & 0xFFFF;
+            int elen = buf.getShort(pos + 30) & 0xFFFF;
+            int clen = buf.getShort(pos + 32) & 0xFFFF;
+            long offset = buf.getInt(pos + 42) & ZIP64_MAGIC;
+
+            if (pos + CEN_SIZE + nlen + elen + clen > end)
+                throw new ZipException("Truncated central directory in " + zip);
+
+            var nameBytes = new byte[nlen];
+            buf.get(pos + CEN_SIZE, nameBytes);
+            var name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            if (csize == ZIP64_MAGIC || size == ZIP64_MAGIC || offset == ZIP64_MAGIC) {
+                var extra = readZip64(buf, pos + CEN_SIZE + nlen, elen, size, csize, offset);
+                size = extra[0];
+                csize = extra[1];
+                offset = extra[2];
+            }
+            long extendedTime = elen == 0 ? -1 : readExtendedTime(buf, pos + CEN_SIZE + nlen, elen, offset);
+            pos += CEN_SIZE + nlen + elen + clen;
+
+            boolean directory = name.endsWith("/");
+            var key = trim(name);
+            if (key.isEmpty())
+                continue;
+            if (!directory) {
+                if ((flag & 1) != 0)
+                    throw new ZipException("Encrypted entries are not supported: " + name);
+                if (method != STORED && method != DEFLATED)
+                    throw new ZipException("Unsupported compression method " + method + " for " + name);
+                if (csize > Integer.MAX_VALUE || offset + csize > buf.limit())
+                    throw new ZipException("Invalid entry " + name);
+            }
+
+            var node = new Node(key, directory, method, csize, directory ? 0 : size, offset, time, extendedTime);
+            var existing = nodes.put(key, node);
+            if (existing != null) {
+                // Later entries win, same as ZipFileSystem, but keep whatever was already found inside a directory
+                var siblings = children.get(parent(key));
+                siblings.set(siblings.indexOf(existing), node);
+                continue;
+            }
+            addParents(nodes, children, node);
+        }
+
+        for (var entry : children.entrySet())
+            nodes.get(entry.getKey()).children = entry.getValue().toArray(Node[]::new);
+        return nodes;
+    }
+
+    private static void addParents(Map<String, Node> nodes, Map<String, List<Node>> children, Node node) {
+        while (true) {
+            var parentName = parent(node.name);
+            children.computeIfAbsent(parentName, k -> new ArrayList<>()).add(node);
+            if (nodes.containsKey(parentName))
+                return;
+            // Lots of jars don't have entries for their directories
+            node = new Node(parentName, true, STORED, 0, 0, -1, 0, -1);
+            nodes.put(parentName, node);
+        }
+    }
+
+    private static String parent(String name) {
+        int idx = name.lastIndexOf('/');
+        return idx == -1 ? "" : name.substring(0, idx);
+    }
+
+    private static String trim(String name) {
+        int start = 0;
+        int end = name.length();
+        while (start < end && name.charAt(start) == '/')
+            start++;
+        while (end > start && name.charAt(end - 1) == '/')
+            end--;
+        return name.substring(start, end);
+    }
+
+    /** Returns the start and end of the central directory. */
+    private static int[] findCentralDirectory(ByteBuffer buf) throws IOException {
+        int length = buf.limit();
+        if (length < END_SIZE)
+            throw new ZipException("Not a zip file");
+
+        // The end header is followed by a comment of up to 64k, so search backwards for it.
+        int end = -1;
+        for (int x = length - END_SIZE; x >= Math.max(0, length - END_SIZE - 0xFFFF); x--) {
+            if (buf.getInt(x) == END_SIG && x + END_SIZE + (buf.getShort(x + 20) & 0xFFFF) == length) {
+                end = x;
+                break;
+            }
+        }
+        if (end == -1)
+            throw new ZipException("Could not find end of central directory");
+
+        long cenSize = buf.getInt(end + 12) & ZIP64_MAGIC;
+        long cenOffset = buf.getInt(end + 16) & ZIP64_MAGIC;
+
+        if (cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+            if (end < ZIP64_LOC_SIZE || buf.getInt(end - ZIP64_LOC_SIZE) != ZIP64_LOC_SIG)
+                throw new ZipException("Missing zip64 end locator");
+            long end64 = buf.getLong(end - ZIP64_LOC_SIZE + 8);
+            if (end64 < 0 || end64 + 56 > length || buf.getInt((int)end64) != ZIP64_END_SIG)
+                throw new ZipException("Invalid zip64 end header");
+            cenSize = buf.getLong((int)end64 + 40);
+            cenOffset = buf.getLong((int)end64 + 48);
+        }
+
+        if (cenSize < 0 || cenOffset < 0 || cenOffset + cenSize > length)
+            throw new ZipException("Invalid central directory");
+
+        return new int[] { (int)cenOffset, (int)(cenOffset + cenSize) };
+    }
+
+    private static long[] readZip64(ByteBuffer buf, int start, int length, long size, long csize, long offset) throws ZipException {
+        int pos = start;
+        int limit = start + length;
+        while (pos + 4 <= limit) {
+            int tag = buf.getShort(pos) & 0xFFFF;
+            int sz = buf.getShort(pos + 2) & 0xFFFF;
+            pos += 4;
+            if (pos + sz > limit)
+                break;
+            if (tag == ZIP64_EXTRA) {
+                // Only the fields that overflowed are present, in this order
+                int off = pos;
+                if (size == ZIP64_MAGIC && off + 8 <= pos + sz) {
+                    size = buf.getLong(off);
+                    off += 8;
+                }
+                if (csize == ZIP64_MAGIC && off + 8 <= pos + sz) {
+                    csize = buf.getLong(off);
+                    off += 8;
+                }
+                if (offset == ZIP64_MAGIC && off + 8 <= pos + sz)
+                    offset = buf.getLong(off);
+                return new long[] { size, csize, offset };
+            }
+            pos += sz;
+        }
+        throw new ZipException("Missing zip64 extra data");
+    }
+
+    /**
+     * The modified time from the NTFS or extended timestamp extra data, whichever is last, same as ZipFileSystem.
+     * The central directory's extended timestamp is only a hint that the local header has one, so read it from there.
+     */
+    private static long readExtendedTime(ByteBuffer buf, int start, int length, long local) {
+        long ret = -1;
+        int pos = start;
+        int limit = start + length;
+        while (pos + 4 <= limit) {
+            int tag = buf.getShort(pos) & 0xFFFF;
+            int sz = buf.getShort(pos + 2) & 0xFFFF;
+            pos += 4;
+            if (pos + sz > limit)
+                break;
+            if (tag == EXT_TIME_EXTRA) {
+                long loc = readLocalTime(buf, local);
+                if (loc != -1)
+                    ret = loc;
+            } else if (tag == NTFS_EXTRA && sz >= 32 && (buf.getShort(pos + 4) & 0xFFFF) == 1 && (buf.getShort(pos + 6) & 0xFFFF) == 24) {
+                ret = buf.getLong(pos + 8) / 10000 - WINDOWS_EPOCH_OFFSET;
+            }
+            pos += sz;
+        }
+        return ret;
+    }
+
+    private static long readLocalTime(ByteBuffer buf, long local) {
+        if (local + LOC_SIZE > buf.limit() || buf.getInt((int)local) != LOC_SIG)
+            return -1;
+        int nlen = buf.getShort((int)local + 26) & 0xFFFF;
+        int elen = buf.getShort((int)local + 28) & 0xFFFF;
+        long pos = local + LOC_SIZE + nlen;
+        long limit = pos + elen;
+        if (limit > buf.limit())
+            return -1;
+        while (pos + 4 <= limit) {
+            int tag = buf.getShort((int)pos) & 0xFFFF;
+            int sz = buf.getShort((int)pos + 2) & 0xFFFF;
+            pos += 4;
+            if (tag == EXT_TIME_EXTRA)
+                return sz >= 5 && pos + 5 <= limit && (buf.get((int)pos) & 1) != 0 ? (buf.getInt((int)pos + 1) & ZIP64_MAGIC) * 1000 : -1;
+            pos += sz;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return this.zip.toString();
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        private ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return this.buf.hasRemaining() ? this.buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!this.buf.hasRemaining())
+                return -1;
+            len = Math.min(len, this.buf.remaining());
+            this.buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public byte[] readAllBytes() {
+            var ret = new byte[this.buf.remaining()];
+            this.buf.get(ret);
+            return ret;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skip = (int)Math.max(0, Math.min(n, this.buf.remaining()));
+            this.buf.position(this.buf.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public int available() {
+            return this.buf.remaining();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provider for {@link MappedZipFileSystem}s, using URIs of the form {@code mzip:file:///path/to.jar!/entry}.
+ * <p>
+ * File systems are only created through {@link #newFileSystem(URI, Map)} or {@link #newFileSystem(Path)}, we never
+ * claim paths passed to FileSystems.newFileSystem so that jars keep opening with the JDK's zip file system by default.
+ */
+public class MappedZipFileSystemProvider extends FileSystemProvider {
+    static final String SCHEME = "mzip";
+
+    private static volatile MappedZipFileSystemProvider instance;
+
+    /** The installed instance if there is one, so that file systems we open can be found by URI. */
+    public static MappedZipFileSystemProvider get() {
+        var ret = instance;
+        if (ret == null) {
+            ret = installedProviders().stream()
+                .filter(p -> p instanceof MappedZipFileSystemProvider)
+                .map(MappedZipFileSystemProvider.class::cast)
+                .findFirst()
+                .orElseGet(MappedZipFileSystemProvider::new);
+            instance = ret;
+        }
+        return ret;
+    }
+
+    private final Map<Path, MappedZipFileSystem> fileSystems = new ConcurrentHashMap<>();
+
+    // Missing files are normal, Files.exists and Files.isDirectory throw these for every miss
+    private static class NoSuchFileException extends java.nio.file.NoSuchFileException {
+        private static final long serialVersionUID = 5893062474214744712L;
+
+        public NoSuchFileException(final String file) {
+            super(file);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    /**
+     * Opens a zip file without registering it, so it can't be found by URI, and any number of them can be open for the same file.
+     */
+    public MappedZipFileSystem newFileSystem(final Path path) throws IOException {
+        return new MappedZipFileSystem(this, path);
+    }
+
+    @Override
+    public FileSystem newFileSystem(final URI uri, final Map<String, ?> env) throws IOException {
+        var zip = toZipPath(uri);
+        synchronized (this.fileSystems) {
+            if (this.fileSystems.containsKey(zip))
+                throw new FileSystemAlreadyExistsException(zip.toString());
+            var ret = new MappedZipFileSystem(this, zip);
+            this.fileSystems.put(zip, ret);
+            return ret;
+        }
+    }
+
+    /** We only open file systems that are explicitly asked for, see the class docs. */
+    @Override
+    public FileSystem newFileSystem(final Path path, final Map<String, ?> env) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileSystem getFileSystem(final URI uri) {
+        var ret = this.fileSystems.get(toZipPath(uri));
+        if (ret == null)
+            throw new FileSystemNotFoundException(uri.toString());
+        return ret;
+    }
+
+    @Override
+    public Path getPath(final URI uri) {
+        var spec = uri.getSchemeSpecificPart();
+        int sep = spec.indexOf("!/");
+        return getFileSystem(uri).getPath(sep == -1 ? "/" : spec.substring(sep + 1));
+    }
+
+    void removeFileSystem(final MappedZipFileSystem fs) {
+        this.fileSystems.remove(fs.getZipFile(), fs);
+    }
+
+    private static Path toZipPath(final URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "'");
+        var spec = uri.getSchemeSpecificPart();
+        int sep = spec.indexOf("!/");
+        if (sep != -1)
+            spec = spec.substring(0, sep);
+        try {
+            return Paths.get(new URI(spec)).toAbsolutePath().normalize();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static MappedZipPath toMappedPath(final Path path) {
+        if (path == null)
+            throw new NullPointerException();
+        if (!(path instanceof MappedZipPath mpath))
+            throw new ProviderMismatchException();
+        return mpath;
+    }
+
+    private static MappedZipFileSystem.Node getNode(final MappedZipPath path) throws NoSuchFileException {
+        var ret = path.getFileSystem().getNode(path);
+        if (ret == null)
+            throw new NoSuchFileException(path.toString());
+        return ret;
+    }
+
+    private static MappedZipFileSystem.Node getFile(final MappedZipPath path) throws IOException {
+        var ret = getNode(path);
+        if (ret.directory)
+            throw new FileSystemException(path.toString(), null, "Is a directory");
+        return ret;
+    }
+
+    private static void checkOptions(final Iterable<? extends OpenOption> options) {
+        for (var option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND || option == StandardOpenOption.CREATE ||
+                option == StandardOpenOption.CREATE_NEW || option == StandardOpenOption.DELETE_ON_CLOSE || option == StandardOpenOption.TRUNCATE_EXISTING)
+                throw new ReadOnlyFileSystemException();
+        }
+    }
+
+    @Override
+    public InputStream newInputStream(final Path path, final OpenOption... options) throws IOException {
+        checkOptions(Arrays.asList(options));
+        var mpath = toMappedPath(path);
+        return mpath.getFileSystem().newInputStream(getFile(mpath));
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>... attrs) throws IOException {
+        checkOptions(options);
+        var mpath = toMappedPath(path);
+        return new BufferChannel(mpath.getFileSystem().read(getFile(mpath)));
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(final Path dir, final DirectoryStream.Filter<? super Path> filter) throws IOException {
+        var mpath = toMappedPath(dir);
+        var node = getNode(mpath);
+        if (!node.directory)
+            throw new NotDirectoryException(dir.toString());
+        var children = mpath.getFileSystem().getChildren(node);
+
+        return new DirectoryStream<>() {
+            private boolean iterated = false;
+            private boolean closed = false;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (this.closed)
+                    throw new IllegalStateException("Directory stream is closed");
+                if (this.iterated)
+                    throw new IllegalStateException("Iterator already obtained");
+                this.iterated = true;
+
+                return new Iterator<>() {
+                    private int index = 0;
+                    private Path next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (this.next == null && !closed && this.index < children.length) {
+                            var child = children[this.index++];
+                            var name = child.name.substring(child.name.lastIndexOf('/') + 1);
+                            var path = mpath.resolve(new MappedZipPath(mpath.getFileSystem(), name));
+                            try {
+                                if (filter == null || filter.accept(path))
+                                    this.next = path;
+                            } catch (IOException e) {
+                                throw new DirectoryIteratorException(e);
+                            }
+                        }
+                        return this.next != null;
+                    }
+
+                    @Override
+                    public Path next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        var ret = this.next;
+                        this.next = null;
+                        return ret;
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                this.closed = true;
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(final Path dir, final FileAttribute<?>... attrs) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(final Path path) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(final Path source, final Path target, final CopyOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(final Path source, final Path target, final CopyOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(final Path path, final Path path2) throws IOException {
+        return path.equals(path2) || (path instanceof MappedZipPath && path2 instanceof MappedZipPath &&
+            path.getFileSystem() == path2.getFileSystem() && path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize()));
+    }
+
+    @Override
+    public boolean isHidden(final Path path) throws IOException {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(final Path path) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void checkAccess(final Path path, final AccessMode... modes) throws IOException {
+        var mpath = toMappedPath(path);
+        getNode(mpath);
+        for (var mode : modes) {
+            if (mode == AccessMode.WRITE)
+                throw new ReadOnlyFileSystemException();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(final Path path, final Class<V> type, final LinkOption... options) {
+        var mpath = toMappedPath(path);
+        if (type != BasicFileAttributeView.class)
+            return null;
+        return (V)new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return getNode(mpath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(final Path path, final Class<A> type, final LinkOption... options) throws IOException {
+        var mpath = toMappedPath(path);
+        if (type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException();
+        return (A)getNode(mpath);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(final Path path, final String attributes, final LinkOption... options) throws IOException {
+        var attrs = readAttributes(path, BasicFileAttributes.class, options);
+        var view = attributes;
+        int idx = attributes.indexOf(':');
+        if (idx != -1) {
+            if (!"basic".equals(attributes.substring(0, idx)))
+                throw new UnsupportedOperationException("View '" + attributes.substring(0, idx) + "' not available");
+            view = attributes.substring(idx + 1);
+        }
+
+        var all = new HashMap<String, Object>();
+        all.put("lastModifiedTime", attrs.lastModifiedTime());
+        all.put("lastAccessTime", attrs.lastAccessTime());
+        all.put("creationTime", attrs.creationTime());
+        all.put("size", attrs.size());
+        all.put("isRegularFile", attrs.isRegularFile());
+        all.put("isDirectory", attrs.isDirectory());
+        all.put("isSymbolicLink", attrs.isSymbolicLink());
+        all.put("isOther", attrs.isOther());
+        all.put("fileKey", attrs.fileKey());
+        if ("*".equals(view))
+            return all;
+
+        var ret = new HashMap<String, Object>();
+        for (var name : view.split(",")) {
+            if (!all.containsKey(name))
+                throw new IllegalArgumentException("'" + name + "' not recognized");
+            ret.put(name, all.get(name));
+        }
+        return ret;
+    }
+
+    @Override
+    public void setAttribute(final Path path, final String attribute, final Object value, final LinkOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    /** Read only channel over an entry's data. */
+    private static final class BufferChannel implements SeekableByteChannel {
+        private final ByteBuffer data;
+        private boolean open = true;
+
+        private BufferChannel(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!this.open)
+                throw new ClosedChannelException();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (!this.data.hasRemaining())
+                return -1;
+            int len = Math.min(dst.remaining(), this.data.remaining());
+            dst.put(dst.position(), this.data, this.data.position(), len);
+            dst.position(dst.position() + len);
+            this.data.position(this.data.position() + len);
+            return len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            ensureOpen();
+            return this.data.position();
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0)
+                throw new IllegalArgumentException("Negative position");
+            this.data.position((int)Math.min(newPosition, this.data.limit()));
+            return this;
+        }
+
+        @Override
+        public synchronized long size() throws IOException {
+            ensureOpen();
+            return this.data.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public synchronized void close() {
+            this.open = false;
+        }
+    }
+}
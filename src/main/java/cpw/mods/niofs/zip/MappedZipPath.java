@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package cpw.mods.niofs.zip;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A path inside a {@link MappedZipFileSystem}. Paths are stored as a single string with no repeated or trailing slashes,
+ * and are only split into names when something needs them.
+ */
+final class MappedZipPath implements Path {
+    private static final String[] NO_NAMES = new String[0];
+
+    private final MappedZipFileSystem fs;
+    private final String path;
+    private String[] names;
+
+    MappedZipPath(MappedZipFileSystem fs, String path) {
+        this.fs = fs;
+        this.path = clean(path);
+    }
+
+    private static String clean(String path) {
+        int len = path.length();
+        boolean clean = len == 0 || path.charAt(len - 1) != '/' || len == 1;
+        for (int x = 1; clean && x < len; x++) {
+            if (path.charAt(x) == '/' && path.charAt(x - 1) == '/')
+                clean = false;
+        }
+        if (clean)
+            return path;
+
+        var buf = new StringBuilder(len);
+        for (int x = 0; x < len; x++) {
+            char c = path.charAt(x);
+            if (c == '/' && buf.length() > 0 && buf.charAt(buf.length() - 1) == '/')
+                continue;
+            buf.append(c);
+        }
+        if (buf.length() > 1 && buf.charAt(buf.length() - 1) == '/')
+            buf.setLength(buf.length() - 1);
+        return buf.toString();
+    }
+
+    private String[] names() {
+        var ret = this.names;
+        if (ret == null) {
+            var start = isAbsolute() ? 1 : 0;
+            if (start == this.path.length() || this.path.isEmpty()) {
+                ret = this.path.isEmpty() ? new String[] { "" } : NO_NAMES;
+            } else {
+                var parts = new ArrayList<String>();
+                int idx;
+                while ((idx = this.path.indexOf('/', start)) != -1) {
+                    parts.add(this.path.substring(start, idx));
+                    start = idx + 1;
+                }
+                parts.add(this.path.substring(start));
+                ret = parts.toArray(String[]::new);
+            }
+            this.names = ret;
+        }
+        return ret;
+    }
+
+    /** The name of the entry this refers to in the zip, without any leading or trailing slash. */
+    String toEntryName() {
+        // Nearly every lookup is already normal, so don't build new paths for them
+        if (!this.path.startsWith(".") && !this.path.contains("/."))
+            return isAbsolute() ? this.path.substring(1) : this.path;
+        var abs = isAbsolute() ? this : this.fs.getRoot().resolve(this);
+        var norm = (MappedZipPath)abs.normalize();
+        return norm.path.length() == 1 ? "" : norm.path.substring(1);
+    }
+
+    private MappedZipPath checkPath(Path other) {
+        if (other == null)
+            throw new NullPointerException();
+        if (!(other instanceof MappedZipPath mpath))
+            throw new ProviderMismatchException();
+        return mpath;
+    }
+
+    private static String join(boolean absolute, String[] names, int start, int end) {
+        var buf = new StringBuilder();
+        if (absolute)
+            buf.append('/');
+        for (int x = start; x < end; x++) {
+            if (x != start)
+                buf.append('/');
+            buf.append(names[x]);
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public MappedZipFileSystem getFileSystem() {
+        return this.fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return !this.path.isEmpty() && this.path.charAt(0) == '/';
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? this.fs.getRoot() : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        var names = names();
+        if (names.length == 0)
+            return null;
+        if (names.length == 1 && !isAbsolute())
+            return this;
+        return new MappedZipPath(this.fs, names[names.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        var names = names();
+        if (names.length == 0 || (names.length == 1 && !isAbsolute()))
+            return null;
+        if (names.length == 1)
+            return this.fs.getRoot();
+        return new MappedZipPath(this.fs, this.path.substring(0, this.path.lastIndexOf('/')));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names().length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        var names = names();
+        if (index < 0 || index >= names.length)
+            throw new IllegalArgumentException();
+        return new MappedZipPath(this.fs, names[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        var names = names();
+        if (beginIndex < 0 || beginIndex >= names.length || endIndex > names.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException();
+        return new MappedZipPath(this.fs, join(false, names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof MappedZipPath mpath) || mpath.fs != this.fs || mpath.isAbsolute() != isAbsolute())
+            return false;
+        var names = names();
+        var others = mpath.names();
+        if (others.length > names.length)
+            return false;
+        for (int x = 0; x < others.length; x++) {
+            if (!others[x].equals(names[x]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof MappedZipPath mpath) || mpath.fs != this.fs)
+            return false;
+        if (mpath.isAbsolute())
+            return equals(mpath);
+        var names = names();
+        var others = mpath.names();
+        if (others.length > names.length)
+            return false;
+        int off = names.length - others.length;
+        for (int x = 0; x < others.length; x++) {
+            if (!others[x].equals(names[off + x]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Path normalize() {
+        var names = names();
+        boolean needed = false;
+        for (var name : names) {
+            if (name.equals(".") || name.equals("..")) {
+                needed = true;
+                break;
+            }
+        }
+        if (!needed)
+            return this;
+
+        var ret = new ArrayList<String>(names.length);
+        for (var name : names) {
+            if (name.equals("."))
+                continue;
+            if (name.equals("..")) {
+                if (!ret.isEmpty() && !ret.get(ret.size() - 1).equals("..")) {
+                    ret.remove(ret.size() - 1);
+                    continue;
+                }
+                if (isAbsolute())
+                    continue; // Can't go above the root
+            }
+            ret.add(name);
+        }
+        return new MappedZipPath(this.fs, join(isAbsolute(), ret.toArray(String[]::new), 0, ret.size()));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        var mpath = checkPath(other);
+        if (mpath.isAbsolute())
+            return mpath;
+        if (mpath.path.isEmpty())
+            return this;
+        if (this.path.isEmpty())
+            return mpath;
+        return new MappedZipPath(this.fs, this.path.endsWith("/") ? this.path + mpath.path : this.path + '/' + mpath.path);
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        var mpath = checkPath(other);
+        if (mpath.isAbsolute() != isAbsolute())
+            throw new IllegalArgumentException("'other' is different type of Path");
+        if (equals(mpath))
+            return new MappedZipPath(this.fs, "");
+        if (this.path.isEmpty())
+            return mpath;
+
+        var names = names();
+        var others = mpath.names();
+        int common = 0;
+        while (common < names.length && common < others.length && names[common].equals(others[common]))
+            common++;
+
+        var ret = new ArrayList<String>();
+        for (int x = common; x < names.length; x++)
+            ret.add("..");
+        ret.addAll(Arrays.asList(others).subList(common, others.length));
+        return new MappedZipPath(this.fs, join(false, ret.toArray(String[]::new), 0, ret.size()));
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(MappedZipFileSystemProvider.SCHEME + ':' + this.fs.getZipFile().toUri() + '!' + ((MappedZipPath)toAbsolutePath()).path);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return isAbsolute() ? this : this.fs.getRoot().resolve(this);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        var ret = toAbsolutePath().normalize();
+        if (!this.fs.exists(ret))
+            throw new NoSuchFileException(toString());
+        return ret;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return this.path.compareTo(checkPath(other).path);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MappedZipPath mpath && mpath.fs == this.fs && mpath.path.equals(this.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(this.fs) * 31 + this.path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+}
@@ -22,7 +22,8 @@ module cpw.mods.securejarhandler {
 
     // TODO: [SM] Move UnionFS out into its own project
     provides java.nio.file.spi.FileSystemProvider
-        with cpw.mods.niofs.union.UnionFileSystemProvider;
+        with cpw.mods.niofs.union.UnionFileSystemProvider,
+             cpw.mods.niofs.zip.MappedZipFileSystemProvider;
 
     uses java.net.spi.URLStreamHandlerProvider;
     provides java.net.spi.URLStreamHandlerProvider with
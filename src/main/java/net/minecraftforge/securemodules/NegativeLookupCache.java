@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) Forge Development LLC
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+
+package net.minecraftforge.securemodules;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded set of names that we know could not be found, so that we don't have to ask every parent again.
+ * Once full, the oldest entries are evicted first.
+ * A capacity of zero or less disables the cache entirely.
+ */
+class NegativeLookupCache {
+    private final int capacity;
+    private final Set<String> missing = ConcurrentHashMap.newKeySet();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    NegativeLookupCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    /**
+     * Returns true if the name is known to be missing.
+     */
+    boolean contains(String name) {
+        if (!isEnabled())
+            return false;
+
+        if (this.missing.contains(name)) {
+            this.hits.increment();
+            return true;
+        }
+
+        this.misses.increment();
+        return false;
+    }
+
+    void add(String name) {
+        if (!isEnabled() || !this.missing.add(name))
+            return;
+
+        this.order.add(name);
+        while (this.missing.size() > this.capacity) {
+            var oldest = this.order.poll();
+            if (oldest == null)
+                break;
+            this.missing.remove(oldest);
+        }
+    }
+
+    void clear() {
+        this.missing.clear();
+        this.order.clear();
+    }
+
+    SecureModuleClassLoader.LookupCacheStats stats() {
+        return new SecureModuleClassLoader.LookupCacheStats(this.hits.sum(), this.misses.sum(), this.missing.size(), this.capacity);
+    }
+}
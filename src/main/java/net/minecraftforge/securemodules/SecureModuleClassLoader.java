@@ -10,6 +10,7 @@ import java.lang.module.*;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.AllPermission;
 import java.security.CodeSigner;
 import java.security.CodeSource;
@@ -24,6 +25,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
@@ -32,6 +34,7 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 import java.util.jar.Attributes;
@@ -44,6 +47,16 @@ import net.minecraftforge.unsafe.UnsafeFieldAccess;
 public class SecureModuleClassLoader extends SecureClassLoader {
     // TODO: [SM] Introduce proper logging framework
     private final boolean DEBUG;
+    /**
+     * How many class and resource names that were not found in any of our parents to remember, so we can fail fast
+     * the next time they are asked for. Disabled by default, because our parents are allowed to define new classes.
+     */
+    private static final int NEGATIVE_CACHE_SIZE = Integer.getInteger("smcl.negativeCacheSize", 0);
+    /**
+     * Define classes directly from the buffer {@link ModuleReader#read(String)} returns, instead of copying it into
+     * a byte array first, when this class loader doesn't transform classes.
+     */
+    private static final boolean DEFINE_FROM_BUFFER = Boolean.parseBoolean(System.getProperty("smcl.defineFromBuffer", "true"));
 
     static {
         ClassLoader.registerAsParallelCapable();
@@ -72,9 +85,22 @@ public class SecureModuleClassLoader extends SecureClassLoader {
     private final Map<String, ClassLoader> packageToParentLoader = new HashMap<>();
     private final Map<ModuleReference, ModuleReader> moduleReaders = new ConcurrentHashMap<>();
     private final Map<String, CodeSource> packageToCodeSource = new ConcurrentHashMap<>();
+    private final Map<ModuleReference, Optional<URL>> moduleLocations = new ConcurrentHashMap<>();
+    // Keyed weakly by the URI our readers gave us, union file systems hand out the same one while it's in use
+    private final Map<URI, URL> resourceUrls = Collections.synchronizedMap(new WeakHashMap<>());
+    private volatile ResourceIndex resourceIndex = null;
+    private final NegativeLookupCache missingClasses = new NegativeLookupCache(NEGATIVE_CACHE_SIZE);
+    private final NegativeLookupCache missingResources = new NegativeLookupCache(NEGATIVE_CACHE_SIZE);
     private final boolean useCachedSignersForUnsignedCode;
+    // True if nobody outside this library has overridden how class bytes are read or transformed
+    private final boolean untransformed;
+    // If untransformed, classes can be defined straight from the module's buffer
+    private final boolean defineFromBuffer;
 
+    /** Subclasses may change this at any time, the negative lookup caches notice and forget what they knew. */
     protected ClassLoader fallbackClassLoader = null;
+    // The fallback the negative lookup caches were filled with
+    private volatile ClassLoader negativeCacheFallback = null;
 
     // Parent should always be sent in, even if its null, this just makes my life easier - Lex
     @Deprecated(forRemoval = true, since = "10.1")
@@ -107,6 +133,10 @@ public class SecureModuleClassLoader extends SecureClassLoader {
 
         this.configuration = config;
         this.useCachedSignersForUnsignedCode = useCachedSignersForUnsignedCode;
+        this.untransformed =
+            !isOverridden(this.getClass(), "getClassBytes", ModuleReader.class, ModuleReference.class, String.class) &&
+            !isOverridden(this.getClass(), "maybeTransformClassBytes", byte[].class, String.class, String.class);
+        this.defineFromBuffer = DEFINE_FROM_BUFFER && this.untransformed;
         this.parents = findAllParentLayers(parentLayers);
 
         // If we only have one parent, then use it as the main parent so we don't duplicate resources
@@ -196,9 +226,7 @@ public class SecureModuleClassLoader extends SecureClassLoader {
             var module = this.packageToOurModules.get(pkg);
             if (module != null) {
                 var ref = module.reference();
-                try (var reader = ref.open()) {
-                    bytes = this.getClassBytes(reader, ref, name);
-                }
+                bytes = this.getClassBytes(getModuleReader(ref), ref, name);
             } else {
                 var parent = this.packageToParentLoader.get(pkg);
                 if (parent != null) {
@@ -231,6 +259,18 @@ public class SecureModuleClassLoader extends SecureClassLoader {
     public URL getResource(String name) {
         Objects.requireNonNull(name);
 
+        checkNegativeCacheFallback();
+        if (this.missingResources.contains(name))
+            return null;
+
+        var url = getResourceImpl(name);
+        if (url == null)
+            this.missingResources.add(name);
+
+        return url;
+    }
+
+    private URL getResourceImpl(String name) {
         // Check ourselves first so we can override others
         var url = findResource(name);
         if (url != null)
@@ -266,7 +306,7 @@ public class SecureModuleClassLoader extends SecureClassLoader {
                 // We didn't find shit!
             }
         } else {
-            for (var moduleName : this.ourModules.keySet()) {
+            for (var moduleName : getResourceIndex().find(name)) {
                 try {
                     var url = findResource(moduleName, name);
                     if (url != null)
@@ -289,8 +329,14 @@ public class SecureModuleClassLoader extends SecureClassLoader {
 
         var reader = getModuleReader(module);
         var uri = reader.find(name);
-        if (uri.isPresent())
-            return uri.get().toURL();
+        if (uri.isPresent()) {
+            var url = this.resourceUrls.get(uri.get());
+            if (url == null) {
+                url = uri.get().toURL();
+                this.resourceUrls.put(uri.get(), url);
+            }
+            return url;
+        }
 
         return null;
     }
@@ -360,7 +406,7 @@ public class SecureModuleClassLoader extends SecureClassLoader {
                 ret = List.of();
         } else {
             ret = new ArrayList<>();
-            for (var moduleName : this.ourModules.keySet()) {
+            for (var moduleName : getResourceIndex().find(name)) {
                 try {
                     var url = findResource(moduleName, name);
                     if (url != null)
@@ -387,8 +433,8 @@ public class SecureModuleClassLoader extends SecureClassLoader {
             throw new ClassNotFoundException(name);
 
         var ref = module.reference();
-        try (var reader = ref.open()) {
-            return readerToClass(reader, ref, name);
+        try {
+            return readerToClass(getModuleReader(ref), ref, name);
         } catch (IOException e) {
             throw new ClassNotFoundException(name, e);
         }
@@ -402,8 +448,8 @@ public class SecureModuleClassLoader extends SecureClassLoader {
             return null;
 
         var ref = module.reference();
-        try (var reader = ref.open()) {
-            return readerToClass(reader, ref, name);
+        try {
+            return readerToClass(getModuleReader(ref), ref, name);
         } catch (IOException e) {
             return null;
         }
@@ -423,29 +469,19 @@ public class SecureModuleClassLoader extends SecureClassLoader {
                         if (c != null)
                             log(() -> this + " Found: " + name + " in self");
                     } else {
-                        var parent = this.packageToParentLoader.getOrDefault(pkg, fallbackClassLoader);
-
-                        if (parent != null) {
-                            c = parent.loadClass(name);
-                            if (c != null)
-                                log(() -> this + " Found: " + name + " in " + parent);
-                        } else if (this.parent != null) {
-                            c = this.parent.loadClass(name);
-                            if (c != null)
-                                log(() -> this + " Found: " + name + " in " + this.parent);
-                        } else if (this.allParentLoaders.isEmpty()) {
-                            c = super.loadClass(name, false);
-                            if (c != null)
-                                log(() -> this + " Found: " + name + " in super");
-                        } else {
-                            for (var loader : this.allParentLoaders) {
-                                try {
-                                    c = loader.loadClass(name);
-                                } catch (ClassNotFoundException e) {
-                                    // Lets look for the next one
-                                }
-                            }
+                        checkNegativeCacheFallback();
+                        if (this.missingClasses.contains(name))
+                            throw new ClassNotFoundException(name);
+
+                        try {
+                            c = loadClassFromParents(pkg, name);
+                        } catch (ClassNotFoundException e) {
+                            this.missingClasses.add(name);
+                            throw e;
                         }
+
+                        if (c == null)
+                            this.missingClasses.add(name);
                     }
                 }
             }
@@ -460,6 +496,81 @@ public class SecureModuleClassLoader extends SecureClassLoader {
         }
     }
 
+    private Class<?> loadClassFromParents(String pkg, String name) throws ClassNotFoundException {
+        Class<?> c = null;
+        var parent = this.packageToParentLoader.getOrDefault(pkg, fallbackClassLoader);
+
+        if (parent != null) {
+            c = parent.loadClass(name);
+            if (c != null)
+                log(() -> this + " Found: " + name + " in " + parent);
+        } else if (this.parent != null) {
+            c = this.parent.loadClass(name);
+            if (c != null)
+                log(() -> this + " Found: " + name + " in " + this.parent);
+        } else if (this.allParentLoaders.isEmpty()) {
+            c = super.loadClass(name, false);
+            if (c != null)
+                log(() -> this + " Found: " + name + " in super");
+        } else {
+            for (var loader : this.allParentLoaders) {
+                try {
+                    c = loader.loadClass(name);
+                } catch (ClassNotFoundException e) {
+                    // Lets look for the next one
+                }
+            }
+        }
+
+        return c;
+    }
+
+    /* ======================================================================
+     * 				NEGATIVE LOOKUP CACHE
+     * ======================================================================
+     */
+
+    /**
+     * Snapshot of how effective a negative lookup cache has been.
+     * @param hits Number of lookups that were answered by the cache
+     * @param misses Number of lookups that had to ask our parents
+     * @param size Number of names currently cached
+     * @param capacity Maximum number of names the cache will hold, zero if it is disabled
+     */
+    public record LookupCacheStats(long hits, long misses, int size, int capacity) {}
+
+    /**
+     * Stats for class names that could not be found in any of our parents.
+     * Classes in our own modules are never cached, as they may be generated by transformers.
+     */
+    public LookupCacheStats getClassLookupStats() {
+        return this.missingClasses.stats();
+    }
+
+    /**
+     * Stats for resources that could not be found in ourselves or any of our parents.
+     */
+    public LookupCacheStats getResourceLookupStats() {
+        return this.missingResources.stats();
+    }
+
+    /**
+     * Forgets everything we know to be missing. This must be called if anything we delegate to changes.
+     */
+    protected void clearNegativeLookupCaches() {
+        this.missingClasses.clear();
+        this.missingResources.clear();
+    }
+
+    /** The fallback is a plain field, so anyone can change it without telling us. */
+    private void checkNegativeCacheFallback() {
+        var fallback = this.fallbackClassLoader;
+        if (fallback != this.negativeCacheFallback) {
+            this.negativeCacheFallback = fallback;
+            clearNegativeLookupCaches();
+        }
+    }
+
     /* ======================================================================
      * 				INTERNAL IMPLEMENTATION CRAP
      * ======================================================================
@@ -469,26 +580,52 @@ public class SecureModuleClassLoader extends SecureClassLoader {
         return this.getClass().getSimpleName() + "[" + this.getName() + "]@" + this.hashCode();
     }
 
-    private Class<?> readerToClass(ModuleReader reader, ModuleReference ref, String name) {
-        byte[] bytes;
-        try {
-            bytes = getClassBytes(reader, ref, name);
-        } catch (IOException e) {
-            return sneak(e);
+    private Class<?> readerToClass(ModuleReader reader, ModuleReference ref, String name) throws IOException {
+        if (this.defineFromBuffer) {
+            // Always released below, so this is allowed to use a reused buffer
+            var read = SecureModuleFinder.readPooled(reader, classToResource(name));
+            if (read.isEmpty())
+                return null;
+
+            var buf = read.get();
+            try {
+                return buf.hasRemaining() ? defineClass(ref, name, buf, null) : null;
+            } finally {
+                reader.release(buf);
+            }
         }
 
+        if (this.untransformed) {
+            // Nothing can touch the bytes between reading and defining, so they can be hashed on the way in.
+            var read = SecureModuleFinder.openVerifying(reader, classToResource(name));
+            if (read.isEmpty())
+                return null;
+
+            byte[] bytes;
+            try (var is = read.get()) {
+                bytes = is.readAllBytes();
+            }
+            return bytes.length == 0 ? null : defineClass(ref, name, ByteBuffer.wrap(bytes), bytes);
+        }
+
+        var bytes = getClassBytes(reader, ref, name);
         bytes = maybeTransformClassBytes(bytes, name, null);
         if (bytes.length == 0)
             return null;
+        return defineClass(ref, name, ByteBuffer.wrap(bytes), null);
+    }
 
+    private Class<?> defineClass(ModuleReference ref, String name, ByteBuffer buf, byte[] untransformed) {
         var data = this.ourModulesSecure.get(ref.descriptor().name());
-        var url = ref.location().map(SecureModuleClassLoader::toURL).orElse(null);
+        var url = this.moduleLocations.computeIfAbsent(ref, r -> r.location().map(SecureModuleClassLoader::toURL)).orElse(null);
         // Try defining the package before the class, if we need to add version information
         // because modules and version information are mutually exclusive.. for some reason.
         var pkg = tryDefinePackage(name, data, url);
 
-        var signers = data == null ? null : data.getCodeSigners(classToResource(name), bytes);
-        var cls = defineClass(name, bytes, 0, bytes.length, getCodeSource(name, url, signers));
+        var signers = data == null ? null :
+            untransformed != null ? data.getUntransformedCodeSigners(classToResource(name), untransformed) :
+            data.getCodeSigners(classToResource(name), buf);
+        var cls = defineClass(name, buf, getCodeSource(name, url, signers));
 
         // If the package was added with version information, it'll be in the unnamed module
         // Set the correct module
@@ -497,6 +634,23 @@ public class SecureModuleClassLoader extends SecureClassLoader {
 
         return cls;
     }
+
+    /**
+     * Returns true if the class, or any of its parents below us, overrides the method with something from outside this library.
+     */
+    private static boolean isOverridden(Class<?> cls, String name, Class<?>... args) {
+        for (; cls != SecureModuleClassLoader.class; cls = cls.getSuperclass()) {
+            if (cls.getModule() == SecureModuleClassLoader.class.getModule())
+                continue;
+            try {
+                cls.getDeclaredMethod(name, args);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Not this one
+            }
+        }
+        return false;
+    }
     private static final UnsafeFieldAccess<? super Package, Module> moduleAccess = UnsafeHacks.findField(Package.class.getSuperclass(), "module");
 
     @Override
@@ -566,11 +720,6 @@ public class SecureModuleClassLoader extends SecureClassLoader {
         return main == null ? null : main.getValue(name);
     }
 
-    @SuppressWarnings("unchecked")
-    private static <E extends Throwable, R> R sneak(Exception exception) throws E {
-        throw (E)exception;
-    }
-
     private static String pathToPackage(String name) {
         int idx = name.lastIndexOf('/');
         if (idx == -1 || idx == name.length() - 1)
@@ -610,6 +759,10 @@ public class SecureModuleClassLoader extends SecureClassLoader {
         return false;
     }
 
+    /**
+     * Readers are opened once per module and shared by every class and resource lookup,
+     * instead of opening and closing a new one for each class we define.
+     */
     private ModuleReader getModuleReader(ModuleReference reference) {
         return this.moduleReaders.computeIfAbsent(reference, k -> {
             try {
@@ -620,6 +773,113 @@ public class SecureModuleClassLoader extends SecureClassLoader {
         });
     }
 
+    private ResourceIndex getResourceIndex() {
+        var ret = this.resourceIndex;
+        if (ret == null) {
+            synchronized (this) {
+                ret = this.resourceIndex;
+                if (ret == null) {
+                    ret = new ResourceIndex();
+                    this.resourceIndex = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Maps the names of all resources that are not in one of our packages to the modules that contain them.
+     * This is things like root level files, META-INF, and assets. Without this we would have to ask every module
+     * if it has the file, which is a file system hit per module.
+     * Modules that can't list their contents, or whose contents can change, are simply searched every time.
+     */
+    private class ResourceIndex {
+        private final Map<String, List<String>> resources = new HashMap<>();
+        private final List<String> unindexed = new ArrayList<>();
+        private final List<String> all;
+
+        private ResourceIndex() {
+            for (var entry : ourModules.entrySet()) {
+                var moduleName = entry.getKey();
+                var ref = entry.getValue();
+                var reader = getModuleReader(ref);
+                // Directories can change after we've listed them, so they have to be asked every time
+                if (!SecureModuleFinder.isStatic(ref, reader)) {
+                    unindexed.add(moduleName);
+                    continue;
+                }
+
+                try (var names = reader.list()) {
+                    var seen = new HashSet<String>();
+                    names.forEach(name -> {
+                        // Directories are findable both with and without the trailing /, and only exist in the index as their children
+                        if (name.endsWith("/")) {
+                            if (seen.add(name))
+                                add(name, moduleName);
+                            name = name.substring(0, name.length() - 1);
+                        }
+
+                        while (!name.isEmpty() && seen.add(name)) {
+                            if (!packageToOurModules.containsKey(pathToPackage(name)))
+                                add(name, moduleName);
+
+                            int idx = name.lastIndexOf('/');
+                            name = idx == -1 ? "" : name.substring(0, idx);
+                            if (!name.isEmpty() && seen.add(name + '/'))
+                                add(name + '/', moduleName);
+                        }
+                    });
+                } catch (Exception e) {
+                    unindexed.add(moduleName);
+                }
+            }
+            this.all = List.copyOf(ourModules.keySet());
+        }
+
+        private void add(String name, String module) {
+            this.resources.computeIfAbsent(name, k -> new ArrayList<>(1)).add(module);
+        }
+
+        /**
+         * Returns the names of the modules that may contain the specified resource.
+         */
+        private List<String> find(String name) {
+            if (!isIndexable(name))
+                return this.all;
+
+            var ret = this.resources.getOrDefault(name, List.of());
+            if (this.unindexed.isEmpty())
+                return ret;
+            if (ret.isEmpty())
+                return this.unindexed;
+
+            var merged = new ArrayList<String>(ret.size() + this.unindexed.size());
+            merged.addAll(ret);
+            merged.addAll(this.unindexed);
+            return merged;
+        }
+
+        /**
+         * Anything that isn't a simple relative path gets resolved by the file systems, so we can't know what it points to.
+         */
+        private static boolean isIndexable(String name) {
+            if (name.isEmpty() || name.charAt(0) == '/' || name.indexOf('\\') != -1 || name.contains("//"))
+                return false;
+
+            int start = 0;
+            while (start < name.length()) {
+                int end = name.indexOf('/', start);
+                if (end == -1)
+                    end = name.length();
+                var len = end - start;
+                if ((len == 1 && name.charAt(start) == '.') || (len == 2 && name.startsWith("..", start)))
+                    return false;
+                start = end + 1;
+            }
+            return true;
+        }
+    }
+
     private static final ModuleReader NOOP_READER = new ModuleReader() {
         @Override
         public Optional<URI> find(String name) throws IOException {
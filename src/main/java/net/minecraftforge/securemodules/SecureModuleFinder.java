@@ -6,12 +6,16 @@
 package net.minecraftforge.securemodules;
 
 import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.jarhandling.impl.Jar;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.module.ModuleFinder;
 import java.lang.module.ModuleReader;
 import java.lang.module.ModuleReference;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.CodeSigner;
 import java.util.*;
 import java.util.jar.Attributes;
@@ -86,6 +90,47 @@ public class SecureModuleFinder implements ModuleFinder {
         public CodeSigner[] getCodeSigners(String entry, byte[] data) {
             return this.jar.verifyAndGetSigners(entry, data);
         }
+
+        @Override
+        public CodeSigner[] getCodeSigners(String entry, ByteBuffer data) {
+            return this.jar.verifyAndGetSigners(entry, data);
+        }
+
+        @Override
+        CodeSigner[] getUntransformedCodeSigners(String entry, byte[] data) {
+            return Jar.verifyUntransformed(this.jar, entry, data);
+        }
+    }
+
+    /**
+     * Same as {@link ModuleReader#read(String)}, but our own readers may hand out a reused buffer.
+     * Only for callers that always give the buffer back to {@link ModuleReader#release(ByteBuffer)}.
+     */
+    static Optional<ByteBuffer> readPooled(ModuleReader reader, String name) throws IOException {
+        if (reader instanceof Reader r)
+            return Jar.readPooled(r.jar(), name);
+        return reader.read(name);
+    }
+
+    /**
+     * Same as {@link ModuleReader#open(String)}, but our own readers hash signed classes as they're read.
+     * Only for callers that define exactly the bytes that were read, see {@link Reference#getUntransformedCodeSigners}.
+     */
+    static Optional<InputStream> openVerifying(ModuleReader reader, String name) throws IOException {
+        if (reader instanceof Reader r)
+            return Jar.openVerifying(r.jar(), name);
+        return reader.open(name);
+    }
+
+    /**
+     * Returns true if the reader's contents can't change, so {@link ModuleReader#list()} only needs to be asked once.
+     * Anything but our own readers is only trusted if it's a plain jar file.
+     */
+    static boolean isStatic(ModuleReference ref, ModuleReader reader) {
+        if (reader instanceof Reader r)
+            return Jar.isStatic(r.jar());
+        var location = ref.location().orElse(null);
+        return location != null && "file".equalsIgnoreCase(location.getScheme()) && Files.isRegularFile(Path.of(location));
     }
 
     private record Reader(SecureJar.ModuleDataProvider jar) implements ModuleReader {
@@ -99,9 +144,23 @@ public class SecureModuleFinder implements ModuleFinder {
             return jar.open(name);
         }
 
+        @Override
+        public Optional<ByteBuffer> read(final String name) throws IOException {
+            return jar.read(name);
+        }
+
+        @Override
+        public void release(final ByteBuffer buf) {
+            Objects.requireNonNull(buf);
+            jar.release(buf);
+        }
+
         @Override
         public Stream<String> list() throws IOException {
-            return null;
+            var ret = jar.list();
+            if (ret == null)
+                throw new IOException("Can not list the contents of " + jar.name());
+            return ret;
         }
 
         @Override
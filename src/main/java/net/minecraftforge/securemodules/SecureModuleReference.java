@@ -8,6 +8,7 @@ package net.minecraftforge.securemodules;
 import java.lang.module.ModuleDescriptor;
 import java.lang.module.ModuleReference;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.security.CodeSigner;
 import java.util.jar.Attributes;
 
@@ -32,8 +33,32 @@ public abstract class SecureModuleReference extends ModuleReference {
      */
     public abstract Attributes getTrustedAttributes(String entry);
 
-    /*
+    /**
      * Returns the code signers that are verified to match the supplied entry and data.
+     * {@link SecureModuleClassLoader} uses this when the class bytes may have been transformed, which is whenever
+     * a subclass overrides {@code getClassBytes} or {@code maybeTransformClassBytes}.
      */
     public abstract CodeSigner[] getCodeSigners(String entry, byte[] data);
+
+    /**
+     * Same as {@link #getCodeSigners(String, byte[])}, for classes defined straight from {@link java.lang.module.ModuleReader#read(String)}.
+     * This is the path {@link SecureModuleClassLoader} normally takes, unless classes can be transformed or {@code smcl.defineFromBuffer} is false.
+     * The buffer's position is not changed. By default this copies the data, implementations should avoid that when there is nothing to verify.
+     */
+    public CodeSigner[] getCodeSigners(String entry, ByteBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length)
+            return getCodeSigners(entry, data.array());
+        var bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return getCodeSigners(entry, bytes);
+    }
+
+    /**
+     * Same as {@link #getCodeSigners(String, byte[])}, for data that was just read in full from {@link java.lang.module.ModuleReader#open(String)}
+     * and hasn't been handed to anything that could change it. Lets our own references use what they learned while it was read.
+     * Only used when nothing can transform classes but {@code smcl.defineFromBuffer} is false.
+     */
+    CodeSigner[] getUntransformedCodeSigners(String entry, byte[] data) {
+        return getCodeSigners(entry, data);
+    }
 }